@@ -16,6 +16,7 @@
  */
 package be.ugent.intec.halvade;
 
+import be.ugent.intec.halvade.hadoop.datatypes.CompactSAMRecordWritable;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
@@ -122,7 +123,6 @@ public class HalvadeOptions {
     public boolean smtEnabled = false;
     public boolean reorderRegions = false;
     public boolean updateRG = false;
-    public boolean snappy = false;
     public int overrideMapMem = -1;
     public int overrideRedMem = -1;
     public boolean countOnly = false;
@@ -131,6 +131,28 @@ public class HalvadeOptions {
     public String stargtf = null;
     public boolean skipBQSR = false;
     public boolean outputGVCF = false;
+    public boolean useBamStream = false;
+    public boolean compactShuffle = false;
+    public boolean binQualities = false;
+    public boolean fastPreprocess = false;
+    public boolean inlineMarkDuplicates = false;
+    public boolean bwaSharedMemory = false;
+    public int taskSize = 0;
+    public boolean fastqBlocks = false;
+    public int refCacheSize = 0;
+    public double coverageSample = 0;
+    public double hotRegionFactor = 0;
+    public int reduceTasks = 0;
+    public boolean preciseRouting = false;
+    public boolean stripTags = false;
+    public String keepTags = null;
+    public boolean dropSecondary = false;
+    public String mapCodec = null;
+    public int tmpBamLevel = -1;
+    public boolean indexSites = false;
+    public boolean gatkServer = false;
+    public int parallelKeys = 1;
+    public boolean streamBQSR = false;
 
     protected DecimalFormat onedec;
     protected static final double REDUCE_TASKS_FACTOR = 1.68 * 15;
@@ -193,6 +215,30 @@ public class HalvadeOptions {
             HalvadeConf.setOutputGVCF(hConf, outputGVCF);
             HalvadeConf.setReadGroup(hConf, "ID:" + RGID + " LB:" + RGLB + " PL:" + RGPL + " PU:" + RGPU + " SM:" + RGSM);
             HalvadeConf.setkeepChrSplitPairs(hConf, keepChrSplitPairs);
+            HalvadeConf.setUseBamStream(hConf, useBamStream);
+            HalvadeConf.setCompactShuffle(hConf, compactShuffle);
+            HalvadeConf.setBinQualities(hConf, binQualities);
+            HalvadeConf.setFastPreprocess(hConf, fastPreprocess);
+            HalvadeConf.setInlineMarkDuplicates(hConf, inlineMarkDuplicates);
+            HalvadeConf.setBwaSharedMemory(hConf, bwaSharedMemory);
+            HalvadeConf.setFastqBlocks(hConf, fastqBlocks && aln == 1 && !rnaPipeline);
+            HalvadeConf.setRefCacheSize(hConf, refCacheSize);
+            HalvadeConf.setSplitHotRegions(hConf, hotRegionFactor > 0);
+            HalvadeConf.setPreciseRouting(hConf, preciseRouting);
+            HalvadeConf.setDropSecondary(hConf, dropSecondary);
+            if (stripTags || compactShuffle) {
+                String tags = keepTags == null ? "" : keepTags;
+                for (String tag : CompactSAMRecordWritable.KEPT_TAGS)
+                    tags += (tags.isEmpty() ? "" : ",") + tag;
+                if (rnaPipeline)
+                    for (String tag : CompactSAMRecordWritable.RNA_KEPT_TAGS)
+                        tags += "," + tag;
+                HalvadeConf.setKeptTags(hConf, tags);
+            }
+            HalvadeConf.setTmpBamLevel(hConf, tmpBamLevel);
+            HalvadeConf.setGATKServer(hConf, gatkServer);
+            HalvadeConf.setParallelKeys(hConf, parallelKeys);
+            HalvadeConf.setStreamBQSR(hConf, streamBQSR);
             if (STARGenome != null) {
                 String pass2uid = new SimpleDateFormat("ddMMyyhhmmss.SSS").format(new Date());
                 HalvadeConf.setPass2UID(hConf, pass2uid);
@@ -259,6 +305,8 @@ public class HalvadeOptions {
                 splitter = new ChromosomeSplitter(dict, bedFile, factoredReduces);
             } else if (readCountsPerRegionFile != null) {
                 splitter = new ChromosomeSplitter(dict, readCountsPerRegionFile, factoredReduces, reorderRegions);
+                if(hotRegionFactor > 0)
+                    splitter.splitHotRegions(hotRegionFactor);
             } else {
                 splitter = new ChromosomeSplitter(dict, factoredReduces);
             }
@@ -269,6 +317,13 @@ public class HalvadeOptions {
         String bedRegions = out + "HalvadeRegions.bed";
         splitter.exportSplitter(bedRegions, hConf);
         reduces = splitter.getRegionCount();
+        if (reduceTasks > 0 && reduceTasks < reduces) {
+            String partitionPlan = out + "HalvadePartitions.bin";
+            splitter.exportPartitionPlan(partitionPlan, hConf, reduceTasks);
+            HalvadeConf.setPartitionPlan(hConf, partitionPlan);
+            reduces = reduceTasks;
+        } else 
+            HalvadeConf.clearPartitionPlan(hConf);
         Logger.DEBUG("final # reducers: " + reduces);
         HalvadeConf.setBedRegions(hConf, bedRegions);
     }
@@ -594,6 +649,90 @@ public class HalvadeOptions {
         Option optIndelRealn = OptionBuilder.withDescription("Run the Indel Realignment step before the BQSR or Variant calling step.")
                 .withLongOpt("indelrealignment")
                 .create();
+        Option optBamStream = OptionBuilder.withDescription("Decode the aligner output as uncompressed BAM (converted with samtools) instead of parsing SAM text.")
+                .withLongOpt("bam_stream")
+                .create();
+        Option optCompactShuffle = OptionBuilder.withDescription("Use a compact record format for the map output, only the tags needed in the reduce phase (RG, NM, MD, MC, MQ and SA, NH and HI for RNA) and those of --keep_tags are kept.")
+                .withLongOpt("compact_shuffle")
+                .create();
+        Option optBinQuals = OptionBuilder.withDescription("Bin the base qualities in 8 levels, in the compact map output and in the reduce tasks.")
+                .withLongOpt("bin_quals")
+                .create();
+        Option optFastPreprocess = OptionBuilder.withDescription("Write the temporary bam file uncompressed and let MarkDuplicates write the indexed output bam directly.")
+                .withLongOpt("fast_preprocess")
+                .create();
+        Option optInlineMarkdup = OptionBuilder.withDescription("Mark duplicates in the reduce task itself instead of running Picard or elPrep.")
+                .withLongOpt("inline_markdup")
+                .create();
+        Option optBwaShm = OptionBuilder.withDescription("Load the BWA index in shared memory once per node, this is only used with BWA mem.")
+                .withLongOpt("bwa_shm")
+                .create();
+        Option optTaskSize = OptionBuilder.withArgName("MB")
+                .hasArg()
+                .withDescription("Combines input files in map tasks of at most this size in MB, one aligner is started per map task.")
+                .withLongOpt("task_size")
+                .create();
+        Option optFastqBlocks = OptionBuilder.withDescription("Read the input in blocks of complete FASTQ records, this allows splitting large input files. Only used with BWA mem.")
+                .withLongOpt("fastq_blocks")
+                .create();
+        Option optRefCache = OptionBuilder.withArgName("GB")
+                .hasArg()
+                .withDescription("Keeps the reference files in a node local cache of at most this size in GB, so different references can be used on the same nodes.")
+                .withLongOpt("ref_cache")
+                .create();
+        Option optCoverageSample = OptionBuilder.withArgName("fraction")
+                .hasArg()
+                .withDescription("Aligns this fraction of the reads in a first job to count the reads per region of the genome, the regions of the reduce tasks are then made with the same number of reads.")
+                .withLongOpt("coverage_sample")
+                .create();
+        Option optSplitHot = OptionBuilder.withArgName("factor")
+                .hasArg()
+                .withDescription("Splits regions with more than this factor times the average number of reads in overlapping regions, requires read counts per region.")
+                .withLongOpt("split_hot")
+                .create();
+        Option optReduceTasks = OptionBuilder.withArgName("tasks")
+                .hasArg()
+                .withDescription("Sets the number of reduce tasks if this is less than the number of regions, the regions are assigned to the tasks by their estimated cost, largest first.")
+                .withLongOpt("reduce_tasks")
+                .create();
+        Option optPreciseRouting = OptionBuilder.withDescription("Uses the end of the mate from the MC tag to send pairs to their regions. With --inline_markdup a read is only sent to the region of its mate if the mate is close.")
+                .withLongOpt("precise_routing")
+                .create();
+        Option optStripTags = OptionBuilder.withDescription("Removes the original qualities and the optional tags that are not used by the reducers (all but RG, NM, MD, MC, MQ and SA, and NH and HI for RNA) from the map output.")
+                .withLongOpt("strip_tags")
+                .create();
+        Option optKeepTags = OptionBuilder.withArgName("tags")
+                .hasArg()
+                .withDescription("Comma separated list of extra tags to keep when the tags are removed from the map output, implies --strip_tags.")
+                .withLongOpt("keep_tags")
+                .create();
+        Option optDropSecondary = OptionBuilder.withDescription("Removes secondary and supplementary alignments from the map output.")
+                .withLongOpt("drop_secondary")
+                .create();
+        Option optMapCodec = OptionBuilder.withArgName("codec")
+                .hasArg()
+                .withDescription("Compression codec for the map output: none, snappy, lz4, deflate, zstd or the class name of a Hadoop codec.")
+                .withLongOpt("map_codec")
+                .create();
+        Option optTmpBamLevel = OptionBuilder.withArgName("level")
+                .hasArg()
+                .withDescription("Compression level (0-9) of the temporary BAM files in the reduce tasks, 0 writes uncompressed BAM files.")
+                .withLongOpt("tmp_bam_level")
+                .create();
+        Option optIndexSites = OptionBuilder.withDescription("Partitions the known sites by region when the job is submitted, every reduce task only reads the sites of its region.")
+                .withLongOpt("index_sites")
+                .create();
+        Option optGATKServer = OptionBuilder.withDescription("Runs all GATK steps of a reduce task in one JVM instead of starting a JVM for every step.")
+                .withLongOpt("gatk_server")
+                .create();
+        Option optParallelKeys = OptionBuilder.withArgName("keys")
+                .hasArg()
+                .withDescription("Number of regions a reduce task processes at the same time when it has several regions, the GATK steps of a region run while the next region is preprocessed. The threads and memory of the task are divided over the regions.")
+                .withLongOpt("parallel_keys")
+                .create();
+        Option optStreamBQSR = OptionBuilder.withDescription("Computes an approximation of the recalibration table while the reads are written after inline duplicate marking instead of running BaseRecalibrator, implies --index_sites. No BAQ is computed so the table differs from that of BaseRecalibrator, mostly near indels. Only used with --inline_markdup and without indel realignment.")
+                .withLongOpt("stream_bqsr")
+                .create();
 
         options.addOption(optIn);
         options.addOption(optOut);
@@ -654,6 +793,28 @@ public class HalvadeOptions {
         options.addOption(optSkipBQSR);
         options.addOption(optOutGVCF);
         options.addOption(optIndelRealn);
+        options.addOption(optBamStream);
+        options.addOption(optCompactShuffle);
+        options.addOption(optBinQuals);
+        options.addOption(optFastPreprocess);
+        options.addOption(optInlineMarkdup);
+        options.addOption(optBwaShm);
+        options.addOption(optTaskSize);
+        options.addOption(optFastqBlocks);
+        options.addOption(optRefCache);
+        options.addOption(optCoverageSample);
+        options.addOption(optSplitHot);
+        options.addOption(optReduceTasks);
+        options.addOption(optPreciseRouting);
+        options.addOption(optStripTags);
+        options.addOption(optKeepTags);
+        options.addOption(optDropSecondary);
+        options.addOption(optMapCodec);
+        options.addOption(optTmpBamLevel);
+        options.addOption(optIndexSites);
+        options.addOption(optGATKServer);
+        options.addOption(optParallelKeys);
+        options.addOption(optStreamBQSR);
     }
     
 
@@ -731,7 +892,7 @@ public class HalvadeOptions {
             useBamInput = true;
         }
         if (line.hasOption("snappy")) {
-            snappy = true;
+            mapCodec = getMapCodec("snappy");
         }
         if (line.hasOption("skip_bqsr")) {
             skipBQSR = true;
@@ -887,6 +1048,84 @@ public class HalvadeOptions {
         if (line.hasOption("elprep")) {
             useElPrep = true;
         }
+        if (line.hasOption("bam_stream")) {
+            useBamStream = true;
+        }
+        if (line.hasOption("compact_shuffle")) {
+            compactShuffle = true;
+        }
+        if (line.hasOption("bin_quals")) {
+            binQualities = true;
+        }
+        if (line.hasOption("fast_preprocess")) {
+            fastPreprocess = true;
+        }
+        if (line.hasOption("inline_markdup")) {
+            inlineMarkDuplicates = true;
+        }
+        if (line.hasOption("bwa_shm")) {
+            bwaSharedMemory = true;
+        }
+        if (line.hasOption("task_size")) {
+            taskSize = Integer.parseInt(line.getOptionValue("task_size"));
+        }
+        if (line.hasOption("fastq_blocks")) {
+            fastqBlocks = true;
+        }
+        if (line.hasOption("ref_cache")) {
+            refCacheSize = Integer.parseInt(line.getOptionValue("ref_cache"));
+        }
+        if (line.hasOption("coverage_sample")) {
+            coverageSample = Double.parseDouble(line.getOptionValue("coverage_sample"));
+            if (coverageSample <= 0 || coverageSample > 1)
+                throw new ParseException("The fraction of --coverage_sample should be larger than 0 and at most 1.");
+        }
+        if (line.hasOption("split_hot")) {
+            hotRegionFactor = Double.parseDouble(line.getOptionValue("split_hot"));
+            if (hotRegionFactor > 0 && line.hasOption("merge_bam"))
+                throw new ParseException("The '--split_hot' option can't be used together with the --merge_bam option as the overlapping regions would write reads twice.");
+        }
+        if (line.hasOption("reduce_tasks")) {
+            reduceTasks = Integer.parseInt(line.getOptionValue("reduce_tasks"));
+        }
+        if (line.hasOption("precise_routing")) {
+            preciseRouting = true;
+        }
+        if (line.hasOption("strip_tags")) {
+            stripTags = true;
+        }
+        if (line.hasOption("keep_tags")) {
+            stripTags = true;
+            keepTags = line.getOptionValue("keep_tags");
+            for (String tag : keepTags.split(","))
+                if (tag.length() != 2)
+                    throw new ParseException("The tags of --keep_tags should be a comma separated list of two character tags.");
+        }
+        if (line.hasOption("drop_secondary")) {
+            dropSecondary = true;
+        }
+        if (line.hasOption("map_codec")) {
+            mapCodec = getMapCodec(line.getOptionValue("map_codec"));
+        }
+        if (line.hasOption("tmp_bam_level")) {
+            tmpBamLevel = Integer.parseInt(line.getOptionValue("tmp_bam_level"));
+            if (tmpBamLevel < 0 || tmpBamLevel > 9)
+                throw new ParseException("The compression level of --tmp_bam_level should be between 0 and 9.");
+        }
+        if (line.hasOption("index_sites")) {
+            indexSites = true;
+        }
+        if (line.hasOption("gatk_server")) {
+            gatkServer = true;
+        }
+        if (line.hasOption("parallel_keys")) {
+            parallelKeys = Integer.parseInt(line.getOptionValue("parallel_keys"));
+        }
+        if (line.hasOption("stream_bqsr")) {
+            // the sites of a region are needed before its reads are read
+            streamBQSR = true;
+            indexSites = true;
+        }
         if (line.hasOption("id")) {
             RGID = line.getOptionValue("id");
         }
@@ -965,4 +1204,31 @@ public class HalvadeOptions {
             throw new ParseException("Program " + name + " not found, please use a valid name.");
         }
     }
+
+    /*
+     * returns the codec class for the map output, an empty string disables the compression.
+     * The zstd codec is only available from Hadoop 2.9 with native zstd support.
+     */
+    protected String getMapCodec(String name) throws ParseException {
+        switch (name.toLowerCase()) {
+            case "none":
+                return "";
+            case "snappy":
+                return "org.apache.hadoop.io.compress.SnappyCodec";
+            case "lz4":
+                return "org.apache.hadoop.io.compress.Lz4Codec";
+            case "deflate":
+                return "org.apache.hadoop.io.compress.DefaultCodec";
+            case "zstd":
+                try {
+                    // the map tasks would fail when the codec isn't there
+                    Class.forName(HalvadeResourceManager.ZSTD_CODEC);
+                } catch (ClassNotFoundException ex) {
+                    throw new ParseException("The zstd codec of '--map_codec' is not available in this Hadoop version, use lz4 or snappy instead.");
+                }
+                return HalvadeResourceManager.ZSTD_CODEC;
+            default:
+                return name;
+        }
+    }
 }
@@ -20,6 +20,9 @@ package be.ugent.intec.halvade;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.Logger;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibCompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 
 /**
  *
@@ -32,9 +35,12 @@ public class HalvadeResourceManager {
     public static int COMBINE = 3;
     
     protected static final int ALL = Integer.MAX_VALUE;
+    // only in Hadoop 2.9 and later
+    protected static final String ZSTD_CODEC = "org.apache.hadoop.io.compress.ZStandardCodec";
     protected static final int MEM_AM = (int) (2*1024);
     protected static final int VCORES_AM = 1;
     protected static final int MEM_ALN = (int) (10*1024);
+    protected static final int MEM_ALN_SHARED = (int) (4*1024); // bwa index in shared memory and memory check is disabled
     protected static final int MEM_STAR_FULL = (int) (32*1024); // full star ref
     protected static final int MEM_STAR_SMALL = (int) (10*1024); // second pass smaller star ref
     protected static final int MEM_STAR_SHARED = (int) (6*1024); // set minimum if memory check is disabled
@@ -64,7 +70,11 @@ public class HalvadeResourceManager {
             Logger.DEBUG("pmem check disabled, using less memory for STAR because of shared memory", 2);
             mmem = MEM_STAR_SHARED;
         }
-        if (rmem == MEM_ELPREP && !opt.useElPrep) 
+        if (type == DNA && !BAMinput && opt.bwaSharedMemory && opt.aln == 1 && "false".equalsIgnoreCase(conf.get("yarn.nodemanager.pmem-check-enabled"))) {
+            Logger.DEBUG("pmem check disabled, using less memory for BWA because of shared memory", 2);
+            mmem = MEM_ALN_SHARED;
+        }
+        if (rmem == MEM_ELPREP && (!opt.useElPrep || opt.inlineMarkDuplicates)) 
             rmem = MEM_REF;
         if((opt.overrideMapMem > 0 || opt.overrideRedMem > 0) && type != COMBINE) {
             if(!BAMinput && opt.overrideMapMem > 0)
@@ -117,9 +127,18 @@ public class HalvadeResourceManager {
         if(type != COMBINE)
             conf.set("mapreduce.job.reduce.slowstart.completedmaps", "0.99");
         
-        if(opt.snappy) {
-            conf.set("mapreduce.map.output.compress", "true");
-            conf.set("mapreduce.map.output.compress.codec", "org.apache.hadoop.io.compress.SnappyCodec");
+        if(opt.mapCodec != null) {
+            if(opt.mapCodec.isEmpty())
+                conf.set("mapreduce.map.output.compress", "false");
+            else {
+                conf.set("mapreduce.map.output.compress", "true");
+                conf.set("mapreduce.map.output.compress.codec", opt.mapCodec);
+                // intermediate data is read once, use the fastest level
+                if(opt.mapCodec.equals(DefaultCodec.class.getName()))
+                    ZlibFactory.setCompressionLevel(conf, ZlibCompressor.CompressionLevel.BEST_SPEED);
+                else if(opt.mapCodec.equals(ZSTD_CODEC))
+                    conf.set("io.compression.codec.zstd.level", "1");
+            }
         }
         
         HalvadeConf.setMapThreads(conf, opt.mthreads);
@@ -20,8 +20,12 @@ package be.ugent.intec.halvade;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import org.seqdoop.hadoop_bam.VariantContextWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.CompactSAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.hadoop.mapreduce.HTSeqCombineMapper;
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.hadoop.mapreduce.FastqBlockInputFormat;
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCombineTextInputFormat;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeTextInputFormat;
 import be.ugent.intec.halvade.hadoop.mapreduce.VCFCombineMapper;
 import be.ugent.intec.halvade.hadoop.partitioners.*;
@@ -35,19 +39,25 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import be.ugent.intec.halvade.utils.Logger;
+import be.ugent.intec.halvade.utils.CoverageHistogram;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.HalvadeFileConstants;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
+import be.ugent.intec.halvade.utils.KnownSitesIndex;
 import be.ugent.intec.halvade.utils.Timer;
 import org.seqdoop.hadoop_bam.BAMInputFormat;
 import org.seqdoop.hadoop_bam.VCFInputFormat;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Date;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 /**
  *
@@ -83,6 +93,14 @@ public class MapReduceRunner extends Configured implements Tool  {
                     }
                     ret = runHalvadeJob(halvadeConf, halvadeDir, HalvadeResourceManager.RNA_SHMEM_PASS2);
                 } else {
+                    if(halvadeOpts.coverageSample > 0 && halvadeOpts.readCountsPerRegionFile == null && halvadeOpts.bedFile == null &&
+                            !halvadeOpts.useBamInput && !halvadeOpts.justAlign && !halvadeOpts.mergeBam) {
+                        ret = runCoverageSampleJob(halvadeConf, halvadeOpts.out + "/coverage");
+                        if(ret != 0) {
+                            Logger.DEBUG("Halvade coverage sample job failed.");
+                            System.exit(-1);
+                        }
+                    }
                     ret = runHalvadeJob(halvadeConf, halvadeDir, HalvadeResourceManager.DNA);
                 }
                 if(ret != 0) {
@@ -151,7 +169,7 @@ public class MapReduceRunner extends Configured implements Tool  {
             FileOutputFormat.setOutputPath(pass1Job, new Path(tmpOutDir));
             pass1Job.setMapperClass(be.ugent.intec.halvade.hadoop.mapreduce.StarAlignPassXMapper.class);
 
-            pass1Job.setInputFormatClass(HalvadeTextInputFormat.class);
+            setFastqInputFormat(pass1Job);
             pass1Job.setMapOutputKeyClass(GenomeSJ.class);
             pass1Job.setMapOutputValueClass(Text.class);
 
@@ -167,6 +185,82 @@ public class MapReduceRunner extends Configured implements Tool  {
             return 0;
     }
     
+    /*
+     * partitions the known sites by the regions of this job, the index is reused if it exists
+     */
+    protected void indexKnownSites(Configuration conf) throws IOException, URISyntaxException {
+        String[] sites = HalvadeConf.getKnownSitesOnHDFS(conf);
+        if(sites.length == 0 || HalvadeConf.getSkipBQSR(conf))
+            return;
+        if(HalvadeConf.getRefIsLocal(conf)) {
+            Logger.DEBUG("known sites are on local disks, not indexed");
+            return;
+        }
+        Timer timer = new Timer();
+        timer.start();
+        String dir = halvadeOpts.out + "HalvadeSites/";
+        for(int i = 0; i < sites.length; i++) 
+            KnownSitesIndex.build(conf, sites[i], i, dir, HalvadeConf.getBedRegions(conf));
+        HalvadeConf.setKnownSitesIndex(conf, dir);
+        timer.stop();
+        Logger.DEBUG("Indexed known sites [runtime: " + timer.getFormattedElapsedTime() + "]");
+    }
+    
+    /*
+     * aligns a sample of the reads and counts them per bin, the read count file
+     * is then used to split the genome in regions with the same number of reads
+     */
+    protected int runCoverageSampleJob(Configuration halvadeConf, String tmpOutDir) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
+        Configuration sampleConf = new Configuration(halvadeConf);
+        HalvadeResourceManager.setJobResources(halvadeOpts, sampleConf, HalvadeResourceManager.DNA, false, false);
+        halvadeOpts.splitChromosomes(sampleConf, 0);
+        HalvadeConf.setOutDir(sampleConf, tmpOutDir);
+        HalvadeConf.setCoverageSample(sampleConf, halvadeOpts.coverageSample);
+        
+        FileSystem outFs = FileSystem.get(new URI(tmpOutDir), sampleConf);
+        boolean skipSample = false;
+        if (outFs.exists(new Path(tmpOutDir))) {
+            skipSample = outFs.exists(new Path(tmpOutDir + "/_SUCCESS"));
+            if(skipSample && CoverageHistogram.readFraction(outFs, new Path(tmpOutDir)) != halvadeOpts.coverageSample) {
+                Logger.DEBUG("coverage sample was made with another fraction of the reads, sampling again");
+                outFs.delete(new Path(tmpOutDir), true);
+                skipSample = false;
+            } else if(skipSample)
+                Logger.DEBUG("coverage sample already created, skipping the coverage sample job");
+            else {
+                Logger.INFO("The output directory \'" + tmpOutDir + "\' already exists.");
+                Logger.INFO("ERROR: Please remove this directory before trying again.");
+                System.exit(-2);
+            }
+        }
+        if(!skipSample) {
+            Job sampleJob = Job.getInstance(sampleConf, "Halvade coverage sample");
+            sampleJob.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+            sampleJob.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
+            addInputFiles(halvadeOpts.in, sampleConf, sampleJob);
+            FileOutputFormat.setOutputPath(sampleJob, new Path(tmpOutDir));
+            sampleJob.setMapperClass(halvadeOpts.alignmentTools[halvadeOpts.aln]);
+            setFastqInputFormat(sampleJob);
+            // the histograms are side outputs, no part files
+            LazyOutputFormat.setOutputFormatClass(sampleJob, TextOutputFormat.class);
+            sampleJob.setNumReduceTasks(0);
+            int ret = runTimedJob(sampleJob, "Halvade coverage sample Job");
+            if(ret != 0 || halvadeOpts.dryRun)
+                return ret;
+            CoverageHistogram.writeFraction(outFs, new Path(tmpOutDir), halvadeOpts.coverageSample);
+        }
+        
+        File countsFile = File.createTempFile("HalvadeReadCounts", ".txt");
+        countsFile.deleteOnExit();
+        long reads;
+        try (PrintWriter writer = new PrintWriter(countsFile)) {
+            reads = CoverageHistogram.merge(outFs, new Path(tmpOutDir), halvadeOpts.dict, CoverageHistogram.DEFAULT_BIN_SIZE, writer);
+        }
+        Logger.DEBUG("sampled " + reads + " aligned reads, read counts per region in " + countsFile.getAbsolutePath());
+        halvadeOpts.readCountsPerRegionFile = countsFile.getAbsolutePath();
+        return 0;
+    }
+    
     protected int runHalvadeJob(Configuration halvadeConf, String tmpOutDir, int jobType) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
         String pipeline = "";
         if(jobType == HalvadeResourceManager.RNA_SHMEM_PASS2) {
@@ -178,6 +272,8 @@ public class MapReduceRunner extends Configured implements Tool  {
             pipeline = DNA; 
         }
         halvadeOpts.splitChromosomes(halvadeConf, 0);
+        if(halvadeOpts.indexSites)
+            indexKnownSites(halvadeConf);
         HalvadeConf.setOutDir(halvadeConf, tmpOutDir);
         FileSystem outFs = FileSystem.get(new URI(tmpOutDir), halvadeConf);
         if (outFs.exists(new Path(tmpOutDir))) {
@@ -204,8 +300,11 @@ public class MapReduceRunner extends Configured implements Tool  {
         
         
         halvadeJob.setMapOutputKeyClass(ChromosomeRegion.class);
-        halvadeJob.setMapOutputValueClass(SAMRecordWritable.class);
-        halvadeJob.setInputFormatClass(HalvadeTextInputFormat.class);
+        if(HalvadeConf.getCompactShuffle(halvadeConf))
+            halvadeJob.setMapOutputValueClass(CompactSAMRecordWritable.class);
+        else
+            halvadeJob.setMapOutputValueClass(SAMRecordWritable.class);
+        setFastqInputFormat(halvadeJob);
         halvadeJob.setOutputKeyClass(Text.class);
         if(halvadeOpts.mergeBam) {
             halvadeJob.setSortComparatorClass(SimpleChrRegionComparator.class);
@@ -235,7 +334,21 @@ public class MapReduceRunner extends Configured implements Tool  {
             halvadeJob.setInputFormatClass(BAMInputFormat.class);
         }
         
-        return runTimedJob(halvadeJob, "Halvade Job");
+        int ret = runTimedJob(halvadeJob, "Halvade Job");
+        if(ret == 0 && !halvadeOpts.dryRun && !halvadeOpts.justAlign) 
+            logDuplicationFactor(halvadeJob);
+        return ret;
+    }
+    
+    /*
+     * reads sent to more than one region are counted once for every extra region
+     */
+    protected void logDuplicationFactor(Job job) throws IOException {
+        long reads = job.getCounters().findCounter(HalvadeCounters.OUT_BWA_READS).getValue();
+        long copies = job.getCounters().findCounter(HalvadeCounters.OUT_OVERLAPPING_READS).getValue();
+        if(reads > 0)
+            Logger.DEBUG("map output duplication factor: " + String.format("%.4f", (double)(reads + copies) / reads) 
+                    + " (" + copies + " extra copies of " + reads + " reads)");
     }
     
     protected int runCombineJob(String halvadeOutDir, String mergeOutDir, boolean featureCount) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
@@ -297,6 +410,19 @@ public class MapReduceRunner extends Configured implements Tool  {
             HalvadeConf.setHeaderFile(conf, headerFile);
     }
     
+    protected void setFastqInputFormat(Job job) {
+        if(HalvadeConf.getFastqBlocks(job.getConfiguration())) {
+            job.setInputFormatClass(FastqBlockInputFormat.class);
+            if(halvadeOpts.taskSize > 0)
+                FileInputFormat.setMinInputSplitSize(job, halvadeOpts.taskSize * 1024L * 1024L);
+        } else if(halvadeOpts.taskSize > 0) {
+            // combine several input files in one map task to start less aligner instances
+            job.setInputFormatClass(HalvadeCombineTextInputFormat.class);
+            FileInputFormat.setMaxInputSplitSize(job, halvadeOpts.taskSize * 1024L * 1024L);
+        } else
+            job.setInputFormatClass(HalvadeTextInputFormat.class);
+    }
+    
     protected void addInputFiles(String input, Configuration conf, Job job) throws URISyntaxException, IOException {
         FileSystem fs = FileSystem.get(new URI(input), conf);
         Logger.DEBUG("adding input files from " + input);
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.datatypes;
+
+import be.ugent.intec.halvade.tools.QualityEncoding;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.io.WritableUtils;
+import org.seqdoop.hadoop_bam.LazyBAMRecordFactory;
+import org.seqdoop.hadoop_bam.SAMRecordWritable;
+
+/**
+ * Smaller serialization of an alignment for the shuffle:
+ * variable length integers, 2-bit packed bases, run length encoded qualities
+ * and only the kept tags, by default those the preprocessing and GATK steps need.
+ * The reducer gets a lazily decoded BAM record, the header is set by SAMRecordIterator.
+ *
+ * @author ddecap
+ */
+public class CompactSAMRecordWritable extends SAMRecordWritable {
+    public static final String[] KEPT_TAGS = {"RG", "NM", "MD", "MC", "MQ", "SA"};
+    public static final String[] RNA_KEPT_TAGS = {"NH", "HI"}; // featureCounts uses NH for multi-mapping reads
+    private static final LazyBAMRecordFactory recordFactory = new LazyBAMRecordFactory();
+    private static final String BAM_BASES = "=ACMGRSVTWYHKDBN";
+    private static final byte[] PACKED_BASES = {'A', 'C', 'G', 'T'};
+    private static final byte[] BASE_TO_PACKED = new byte[256];
+    private static final byte[] BASE_TO_BAM = new byte[256];
+    private static final byte NOT_PACKED = -1;
+    private static final int HAS_QUALITIES = 1;
+    private static final int RUN_FLAG = 0x80;
+
+    static {
+        for(int i = 0; i < 256; i++) {
+            BASE_TO_PACKED[i] = NOT_PACKED;
+            BASE_TO_BAM[i] = 15; // N
+        }
+        for(int i = 0; i < PACKED_BASES.length; i++)
+            BASE_TO_PACKED[PACKED_BASES[i]] = (byte) i;
+        for(int i = 0; i < BAM_BASES.length(); i++) {
+            BASE_TO_BAM[BAM_BASES.charAt(i)] = (byte) i;
+            BASE_TO_BAM[Character.toLowerCase(BAM_BASES.charAt(i))] = (byte) i;
+        }
+    }
+
+    private SAMRecord record;
+    private boolean binQualities = false;
+    private String[] keptTags = KEPT_TAGS;
+
+    public void setBinQualities(boolean binQualities) {
+        this.binQualities = binQualities;
+    }
+
+    public void setKeptTags(String[] keptTags) {
+        this.keptTags = keptTags;
+    }
+
+    @Override
+    public SAMRecord get() {
+        return record;
+    }
+
+    @Override
+    public void set(SAMRecord record) {
+        this.record = record;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        SAMRecord sam = record;
+        WritableUtils.writeVInt(out, sam.getFlags());
+        WritableUtils.writeVInt(out, sam.getReferenceIndex());
+        WritableUtils.writeVInt(out, sam.getAlignmentStart());
+        WritableUtils.writeVInt(out, sam.getMappingQuality());
+        WritableUtils.writeVInt(out, sam.getMateReferenceIndex());
+        WritableUtils.writeVInt(out, sam.getMateAlignmentStart());
+        WritableUtils.writeVInt(out, sam.getInferredInsertSize());
+
+        String name = sam.getReadName();
+        WritableUtils.writeVInt(out, name.length());
+        for(int i = 0; i < name.length(); i++)
+            out.writeByte(name.charAt(i));
+
+        List<CigarElement> cigar = sam.getCigar().getCigarElements();
+        WritableUtils.writeVInt(out, cigar.size());
+        for(CigarElement e : cigar)
+            WritableUtils.writeVInt(out, e.getLength() << 4 | CigarOperator.enumToBinary(e.getOperator()));
+
+        byte[] bases = sam.getReadBases();
+        byte[] quals = sam.getBaseQualities();
+        boolean hasQuals = bases.length > 0 && quals.length == bases.length;
+        WritableUtils.writeVInt(out, bases.length);
+        out.writeByte(hasQuals ? HAS_QUALITIES : 0);
+        writeBases(out, bases);
+        if(hasQuals) {
+            if(binQualities) {
+                quals = quals.clone();
+                QualityEncoding.binQualities(quals);
+            }
+            writeQualities(out, quals);
+        }
+        writeTags(out, sam);
+    }
+
+    /*
+     * 4 bases per byte, other bases than ACGT are written as exceptions after the packed bases
+     */
+    private void writeBases(DataOutput out, byte[] bases) throws IOException {
+        int exceptions = 0;
+        int packed = 0;
+        for(int i = 0; i < bases.length; i++) {
+            byte code = BASE_TO_PACKED[bases[i] & 0xff];
+            if(code == NOT_PACKED) {
+                exceptions++;
+                code = 0;
+            }
+            packed |= code << ((i & 3) << 1);
+            if((i & 3) == 3 || i == bases.length - 1) {
+                out.writeByte(packed);
+                packed = 0;
+            }
+        }
+        WritableUtils.writeVInt(out, exceptions);
+        int last = 0;
+        for(int i = 0; i < bases.length && exceptions > 0; i++) {
+            if(BASE_TO_PACKED[bases[i] & 0xff] == NOT_PACKED) {
+                WritableUtils.writeVInt(out, i - last);
+                out.writeByte(bases[i]);
+                last = i;
+                exceptions--;
+            }
+        }
+    }
+
+    /*
+     * a quality that is repeated is written with the run flag followed by the run length
+     */
+    private void writeQualities(DataOutput out, byte[] quals) throws IOException {
+        int i = 0;
+        while (i < quals.length) {
+            int run = 1;
+            while (i + run < quals.length && quals[i + run] == quals[i])
+                run++;
+            if(run == 1) {
+                out.writeByte(quals[i]);
+            } else {
+                out.writeByte(quals[i] | RUN_FLAG);
+                WritableUtils.writeVInt(out, run);
+            }
+            i += run;
+        }
+    }
+
+    private void writeTags(DataOutput out, SAMRecord sam) throws IOException {
+        int count = 0;
+        for(String tag : keptTags)
+            if(isSupportedValue(sam.getAttribute(tag))) count++;
+        out.writeByte(count);
+        for(String tag : keptTags) {
+            Object value = sam.getAttribute(tag);
+            if(!isSupportedValue(value)) continue;
+            out.writeShort(tag.charAt(1) << 8 | tag.charAt(0));
+            if(value instanceof String) {
+                out.writeByte('Z');
+                WritableUtils.writeString(out, (String)value);
+            } else if(value instanceof Character) {
+                out.writeByte('A');
+                out.writeByte((Character)value);
+            } else if(value instanceof Float) {
+                out.writeByte('f');
+                out.writeFloat((Float)value);
+            } else {
+                out.writeByte('i');
+                WritableUtils.writeVInt(out, ((Number)value).intValue());
+            }
+        }
+    }
+
+    private boolean isSupportedValue(Object value) {
+        return value instanceof String || value instanceof Character || value instanceof Float ||
+                value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int flags = WritableUtils.readVInt(in);
+        int refIndex = WritableUtils.readVInt(in);
+        int start = WritableUtils.readVInt(in);
+        int mapq = WritableUtils.readVInt(in);
+        int mateRefIndex = WritableUtils.readVInt(in);
+        int mateStart = WritableUtils.readVInt(in);
+        int insertSize = WritableUtils.readVInt(in);
+
+        byte[] name = new byte[WritableUtils.readVInt(in) + 1];
+        in.readFully(name, 0, name.length - 1);
+        int[] cigar = new int[WritableUtils.readVInt(in)];
+        for(int i = 0; i < cigar.length; i++)
+            cigar[i] = WritableUtils.readVInt(in);
+        int readLength = WritableUtils.readVInt(in);
+        boolean hasQuals = (in.readByte() & HAS_QUALITIES) != 0;
+        byte[] bases = readBases(in, readLength);
+        byte[] quals = null;
+        if(hasQuals)
+            quals = readQualities(in, readLength);
+        byte[] tags = readTags(in);
+
+        // the variable length part of a BAM record: name, cigar, 4-bit bases, qualities and tags
+        int packedLength = (readLength + 1) / 2;
+        byte[] block = new byte[name.length + cigar.length * 4 + packedLength + readLength + tags.length];
+        int offset = 0;
+        System.arraycopy(name, 0, block, offset, name.length);
+        offset += name.length;
+        for(int op : cigar) {
+            writeIntLE(block, offset, op);
+            offset += 4;
+        }
+        for(int i = 0; i < readLength; i++) {
+            int code = BASE_TO_BAM[bases[i] & 0xff];
+            block[offset + i / 2] |= (i & 1) == 0 ? code << 4 : code;
+        }
+        offset += packedLength;
+        if(hasQuals)
+            System.arraycopy(quals, 0, block, offset, readLength);
+        else
+            for(int i = 0; i < readLength; i++)
+                block[offset + i] = (byte) 0xff;
+        offset += readLength;
+        System.arraycopy(tags, 0, block, offset, tags.length);
+
+        record = recordFactory.createBAMRecord(null, refIndex, start, (short)name.length, (short)mapq, 
+                computeIndexingBin(flags, start, cigar),
+                cigar.length, flags, readLength, mateRefIndex, mateStart, insertSize, block);
+    }
+
+    private byte[] readBases(DataInput in, int readLength) throws IOException {
+        byte[] bases = new byte[readLength];
+        int packed = 0;
+        for(int i = 0; i < readLength; i++) {
+            if((i & 3) == 0)
+                packed = in.readByte();
+            bases[i] = PACKED_BASES[(packed >> ((i & 3) << 1)) & 3];
+        }
+        int exceptions = WritableUtils.readVInt(in);
+        int pos = 0;
+        for(int i = 0; i < exceptions; i++) {
+            pos += WritableUtils.readVInt(in);
+            bases[pos] = in.readByte();
+        }
+        return bases;
+    }
+
+    private byte[] readQualities(DataInput in, int readLength) throws IOException {
+        byte[] quals = new byte[readLength];
+        int i = 0;
+        while (i < readLength) {
+            int q = in.readByte() & 0xff;
+            if((q & RUN_FLAG) == 0) {
+                quals[i++] = (byte) q;
+            } else {
+                int run = WritableUtils.readVInt(in);
+                for(int j = 0; j < run; j++)
+                    quals[i++] = (byte) (q & ~RUN_FLAG);
+            }
+        }
+        return quals;
+    }
+
+    /*
+     * reads the kept tags and returns them in the BAM binary tag format
+     */
+    private byte[] readTags(DataInput in) throws IOException {
+        int count = in.readByte() & 0xff;
+        byte[][] values = new byte[count][];
+        int length = 0;
+        for(int i = 0; i < count; i++) {
+            short tag = in.readShort();
+            byte type = in.readByte();
+            byte[] value;
+            if(type == 'Z') {
+                byte[] s = WritableUtils.readString(in).getBytes("UTF-8");
+                value = new byte[s.length + 4];
+                System.arraycopy(s, 0, value, 3, s.length);
+            } else if(type == 'A') {
+                value = new byte[4];
+                value[3] = in.readByte();
+            } else if(type == 'f') {
+                value = new byte[7];
+                writeIntLE(value, 3, Float.floatToIntBits(in.readFloat()));
+            } else {
+                value = new byte[7];
+                writeIntLE(value, 3, WritableUtils.readVInt(in));
+            }
+            value[0] = (byte) tag;
+            value[1] = (byte) (tag >> 8);
+            value[2] = type;
+            values[i] = value;
+            length += value.length;
+        }
+        byte[] tags = new byte[length];
+        int offset = 0;
+        for(byte[] value : values) {
+            System.arraycopy(value, 0, tags, offset, value.length);
+            offset += value.length;
+        }
+        return tags;
+    }
+
+    /*
+     * same bin as SAMRecord.computeIndexingBin, which is not accessible here
+     */
+    private static int computeIndexingBin(int flags, int start, int[] cigar) {
+        int beg = start - 1;
+        int end = 0;
+        if((flags & 0x4) == 0) {
+            for(int op : cigar) {
+                if(CigarOperator.binaryToEnum(op & 0xf).consumesReferenceBases())
+                    end += op >>> 4;
+            }
+            end = end > 0 ? start + end - 1 : 0;
+        }
+        if(end <= 0)
+            end = beg + 1;
+        end--;
+        if (beg >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (beg >> 14);
+        if (beg >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (beg >> 17);
+        if (beg >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (beg >> 20);
+        if (beg >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (beg >> 23);
+        if (beg >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (beg >> 26);
+        return 0;
+    }
+
+    private static void writeIntLE(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -21,6 +21,7 @@ import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import java.io.IOException;
 import org.apache.hadoop.io.Text;
 import be.ugent.intec.halvade.tools.BWAMemInstance;
+import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.Logger;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import java.net.URISyntaxException;
@@ -31,16 +32,28 @@ import org.apache.hadoop.io.LongWritable;
  * @author ddecap
  */
 public class BWAMemMapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWritable> {
+    protected boolean sharedMemory;
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        super.cleanup(context);
+        if(allTasksHaveStarted && sharedMemory)
+            ((BWAMemInstance)instance).loadSharedMemoryReference(true);
+    }
 
     @Override
     protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((BWAMemInstance)instance).feedLine(value.toString());
+        if(fastqBlocks)
+            ((BWAMemInstance)instance).feedBlock(value);
+        else
+            ((BWAMemInstance)instance).feedLine(value);
     }
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
         super.setup(context);
+        sharedMemory = HalvadeConf.getBwaSharedMemory(context.getConfiguration());
         try {
             String binDir = checkBinaries(context); 
             instance = BWAMemInstance.getBWAInstance(context, binDir, task);
@@ -17,6 +17,7 @@ import be.ugent.intec.halvade.utils.SAMRecordIterator;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
 
 /**
  *
@@ -25,20 +26,20 @@ import java.net.URISyntaxException;
 public class DnaGATKReducer extends GATKReducer {
 
     @Override
-    protected void processAlignments(Iterable<SAMRecordWritable> values, Context context, PreprocessingTools tools, GATKTools gatk) throws IOException, InterruptedException, URISyntaxException, QualityException {
+    protected void processAlignments(Iterable<SAMRecordWritable> values, final Context context, final PreprocessingTools tools, final GATKTools gatk) throws IOException, InterruptedException, URISyntaxException, QualityException {
         long startTime = System.currentTimeMillis();
         // temporary files
         String region = tmpFileBase + "-region.intervals";
-        String preprocess = tmpFileBase + ".bam";
-        String tmpFile1 = tmpFileBase + "-2.bam";
-        String tmpFile2 = tmpFileBase + "-3.bam";
-        String snps = tmpFileBase + (outputGVCF ? ".g.vcf" : ".vcf");    
+        final String preprocess = tmpFileBase + ".bam";
         boolean useElPrep = HalvadeConf.getUseElPrep(context.getConfiguration());
-        boolean splitNtrim = HalvadeConf.getSplitNTrim(context.getConfiguration());
-        ChromosomeRange r = new ChromosomeRange();
-        SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r, fixQualEnc);
+        final ChromosomeRange r = new ChromosomeRange();
+        SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r, fixQualEnc, binQualities);
+        // streaming the recalibration table is only enabled with inline duplicate marking
+        final String table = streamBQSR ? tmpFileBase + ".table" : null;
         
-        if(useElPrep && isFirstAttempt) 
+        if(inlineMarkDuplicates)
+            inlinePreprocess(context, tools, SAMit, preprocess, table);
+        else if(useElPrep && isFirstAttempt) 
             elPrepPreprocess(context, tools, SAMit, preprocess);
         else  {
             if(!isFirstAttempt) Logger.DEBUG("attempt " + taskId + ", preprocessing with Picard for smaller peak memory");
@@ -50,34 +51,67 @@ public class DnaGATKReducer extends GATKReducer {
             }
             PicardPreprocess(context, tools, SAMit, preprocess);
         }
-        region = makeRegionFile(context, r, tools, region);
-        if(region == null) return;
+        final String regionFile = makeRegionFile(context, r, tools, region);
+        if(regionFile == null) {
+            if(table != null) HalvadeFileUtils.removeLocalFile(keep, table);
+            return;
+        }
         
+        if(keyPool != null) {
+            // the reads are on local disk now, the next key can be read while the GATK steps run
+            final String tmpBase = tmpFileBase;
+            final int key = currentKey;
+            runInKeyPool(context, gatk, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    processRegion(context, r, tools, gatk, preprocess, regionFile, table, tmpBase, key);
+                    return null;
+                }
+            });
+        } else 
+            processRegion(context, r, tools, gatk, preprocess, regionFile, table, tmpFileBase, currentKey);
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("total estimated time: " + estimatedTime / 1000);
+    }
+    
+    /*
+     * the GATK steps of a preprocessed region, only uses the temporary files of this key.
+     * BaseRecalibrator is skipped if the table was computed during preprocessing
+     */
+    protected void processRegion(Context context, ChromosomeRange r, PreprocessingTools tools, GATKTools gatk, 
+            String preprocess, String region, String table, String tmpBase, int key) throws IOException, InterruptedException, URISyntaxException {
+        String tmpFile1 = tmpBase + "-2.bam";
+        String tmpFile2 = tmpBase + "-3.bam";
+        String snps = tmpBase + (outputGVCF ? ".g.vcf" : ".vcf");    
+        boolean splitNtrim = HalvadeConf.getSplitNTrim(context.getConfiguration());
         
         String indelRealnInput = preprocess;
         // do splitntrim if option
         if(splitNtrim) {
-            String tmpFile0 = tmpFileBase + "-1.bam";
+            String tmpFile0 = tmpBase + "-1.bam";
             splitNTrim(context, region, gatk, preprocess, tmpFile0, false);
             indelRealnInput = tmpFile0;
         }    
         String varCalInput = indelRealnInput;
         if (doIndelRealignment) {
-            indelRealignment(context, region, gatk, indelRealnInput, tmpFile1);  
+            indelRealignment(context, region, gatk, indelRealnInput, tmpFile1, tmpBase);  
             varCalInput = tmpFile1;
         }
         
         if(skipBQSR) {
             DnaVariantCalling(context, region, gatk, varCalInput, snps);  
         } else {            
-            baseQualityScoreRecalibration(context, region, r, tools, gatk, varCalInput, tmpFile2);        
+            if(table != null)
+                printRecalibratedReads(context, region, gatk, varCalInput, tmpFile2, table);
+            else
+                baseQualityScoreRecalibration(context, region, r, tools, gatk, varCalInput, tmpFile2, tmpBase, key);        
             DnaVariantCalling(context, region, gatk, tmpFile2, snps);
         }
-        variantFiles.add(snps);
+        synchronized(variantFiles) {
+            variantFiles.add(snps);
+        }
            
         HalvadeFileUtils.removeLocalFile(region);
-        long estimatedTime = System.currentTimeMillis() - startTime;
-        Logger.DEBUG("total estimated time: " + estimatedTime / 1000);
     }
     
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ *
+ * @author ddecap
+ */
+public class FastqBlockRecordReader extends RecordReader<LongWritable, Text> {
+    public static final String BLOCK_SIZE = "halvade.fastq.blocksize";
+    protected static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+    protected static final byte[] NEWLINE = {'\n'};
+    
+    protected long start, end, pos;
+    protected boolean compressed;
+    protected long compressedLength;
+    protected FSDataInputStream fileIn;
+    protected LineReader in;
+    protected int blockSize;
+    protected int linesPerGroup;
+    protected ArrayDeque<Line> buffered;
+    protected LongWritable key;
+    protected Text value;
+    protected Line[] group;
+    protected boolean done = false;
+    
+    protected static class Line {
+        protected Text text = new Text();
+        protected long offset;
+    }
+
+    @Override
+    public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+        FileSplit split = (FileSplit) genericSplit;
+        Configuration conf = context.getConfiguration();
+        blockSize = conf.getInt(BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+        linesPerGroup = HalvadeConf.getIsPaired(conf) ? 8 : 4;
+        group = new Line[linesPerGroup];
+        for(int i = 0; i < linesPerGroup; i++)
+            group[i] = new Line();
+        buffered = new ArrayDeque<>();
+        start = split.getStart();
+        end = start + split.getLength();
+        Path file = split.getPath();
+        FileSystem fs = file.getFileSystem(conf);
+        fileIn = fs.open(file);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+        if(codec != null) {
+            compressed = true;
+            // a compressed file is one split, the progress is the position in the compressed file
+            compressedLength = split.getLength();
+            end = Long.MAX_VALUE;
+            in = new LineReader(codec.createInputStream(fileIn), conf);
+            pos = start = 0;
+        } else {
+            compressed = false;
+            if(start != 0) {
+                // skip the partial line, reading from start - 1 keeps a line that begins at start
+                fileIn.seek(start - 1);
+                in = new LineReader(fileIn, conf);
+                pos = start - 1;
+                pos += in.readLine(new Text());
+            } else {
+                in = new LineReader(fileIn, conf);
+                pos = 0;
+            }
+            if(start != 0) 
+                synchronize();
+        }
+        key = new LongWritable();
+        value = new Text();
+    }
+    
+    protected boolean nextLine(Line l) throws IOException {
+        if(!buffered.isEmpty()) {
+            Line b = buffered.pollFirst();
+            l.text.set(b.text);
+            l.offset = b.offset;
+            return true;
+        }
+        l.offset = pos;
+        int read = in.readLine(l.text);
+        pos += read;
+        return read > 0;
+    }
+    
+    protected boolean fill(ArrayDeque<Line> lines, int n) throws IOException {
+        while(lines.size() < n) {
+            Line l = new Line();
+            l.offset = pos;
+            int read = in.readLine(l.text);
+            if(read == 0) return false;
+            pos += read;
+            lines.addLast(l);
+        }
+        return true;
+    }
+    
+    /*
+     * moves the buffered lines to the first record (pair) that starts in this split
+     */
+    protected void synchronize() throws IOException {
+        while(true) {
+            boolean complete = fill(buffered, linesPerGroup + 1);
+            Line[] lines = buffered.toArray(new Line[buffered.size()]);
+            if(lines.length == 0) 
+                return;
+            if(isRecord(lines, 0, complete) && 
+                    (linesPerGroup == 4 || (isRecord(lines, 4, complete) && sameName(lines[0].text, lines[4].text))))
+                return;
+            buffered.pollFirst();
+            if(lines[0].offset >= end)
+                return;
+        }
+    }
+    
+    protected static boolean isRecord(Line[] lines, int i, boolean complete) {
+        if(lines.length < i + 4) return false;
+        if(lines[i].text.getLength() == 0 || lines[i].text.getBytes()[0] != '@') return false;
+        if(lines[i + 2].text.getLength() == 0 || lines[i + 2].text.getBytes()[0] != '+') return false;
+        if(lines[i + 1].text.getLength() != lines[i + 3].text.getLength()) return false;
+        if(lines.length > i + 4) 
+            return lines[i + 4].text.getLength() > 0 && lines[i + 4].text.getBytes()[0] == '@';
+        return !complete || lines.length == i + 4;
+    }
+    
+    /*
+     * compares the read names without the /1 and /2 suffix and comments
+     */
+    protected static boolean sameName(Text a, Text b) {
+        int la = nameLength(a), lb = nameLength(b);
+        if(la != lb) return false;
+        byte[] ba = a.getBytes(), bb = b.getBytes();
+        for(int i = 0; i < la; i++)
+            if(ba[i] != bb[i]) return false;
+        return true;
+    }
+    
+    protected static int nameLength(Text t) {
+        byte[] b = t.getBytes();
+        int len = 0;
+        while(len < t.getLength() && b[len] != ' ' && b[len] != '\t') len++;
+        if(len > 2 && b[len - 2] == '/' && (b[len - 1] == '1' || b[len - 1] == '2')) 
+            len -= 2;
+        return len;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        if(done) return false;
+        value.clear();
+        boolean first = true;
+        while(value.getLength() < blockSize) {
+            if(!nextLine(group[0]) || group[0].offset >= end) {
+                done = true;
+                break;
+            }
+            for(int i = 1; i < linesPerGroup; i++) {
+                if(!nextLine(group[i]))
+                    throw new IOException("Incomplete FASTQ record at offset " + group[0].offset);
+            }
+            if(first) {
+                key.set(group[0].offset);
+                first = false;
+            }
+            for(int i = 0; i < linesPerGroup; i++) {
+                value.append(group[i].text.getBytes(), 0, group[i].text.getLength());
+                value.append(NEWLINE, 0, 1);
+            }
+        }
+        return !first;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public Text getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if(compressed) {
+            if(done) 
+                return 1.0f;
+            if(compressedLength == 0) 
+                return 0.0f;
+            return Math.min(1.0f, fileIn.getPos() / (float) compressedLength);
+        }
+        if(start == end) 
+            return 0.0f;
+        return Math.min(1.0f, (pos - start) / (float) (end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(in != null)
+            in.close();
+    }
+}
@@ -23,18 +23,34 @@ import java.io.File;
 import java.io.IOException;
 import htsjdk.samtools.*;
 import org.apache.hadoop.fs.FileSystem;
+import be.ugent.intec.halvade.tools.DuplicateMarker;
+import be.ugent.intec.halvade.tools.GATKToolProcess;
 import be.ugent.intec.halvade.tools.GATKTools;
 import be.ugent.intec.halvade.tools.PreprocessingTools;
 import be.ugent.intec.halvade.tools.ProcessException;
 import be.ugent.intec.halvade.tools.QualityException;
+import be.ugent.intec.halvade.tools.StreamingRecalibrator;
 import be.ugent.intec.halvade.utils.ChromosomeRange;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.KnownSitesIndex;
 import be.ugent.intec.halvade.utils.Logger;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *
@@ -44,6 +60,7 @@ public abstract class GATKReducer extends HalvadeReducer {
 
     protected boolean isFirstAttempt;
     protected boolean fixQualEnc;
+    protected boolean binQualities;
     protected boolean filterDBsnp;
     protected boolean useUnifiedGenotyper;
     protected boolean doIndelRealignment;
@@ -56,13 +73,28 @@ public abstract class GATKReducer extends HalvadeReducer {
     protected boolean isRNA;
     protected boolean redistribute;
     protected boolean keepDups;
+    protected boolean fastPreprocess;
+    protected boolean inlineMarkDuplicates;
+    protected int tmpBamLevel;
+    protected String sitesIndex;
+    protected boolean useGATKServer;
+    protected ConcurrentLinkedQueue<GATKToolProcess> gatkServers = new ConcurrentLinkedQueue<>();
+    protected int parallelKeys;
+    protected ExecutorService keyPool = null;
+    protected Semaphore keySlots;
+    protected ArrayList<Future<Void>> keyResults;
+    protected static final long PROGRESS_INTERVAL = 60000;
+    protected boolean streamBQSR;
     protected int containers;
     protected int tasksLeft;
     protected String gff;
+    protected ChromosomeSplitter splitter;
+    protected int currentKey;
 
     @Override
     protected void reduce(ChromosomeRegion key, Iterable<SAMRecordWritable> values, Context context) throws IOException, InterruptedException {
         super.reduce(key, values, context);
+        currentKey = key.getReduceNumber();
         try {
             Logger.DEBUG("Processing key: " + key);
             // wrappers to call external programs
@@ -75,7 +107,21 @@ public abstract class GATKReducer extends HalvadeReducer {
                 gatk.setJava(java);
                 tools.setJava(java);
             }
-            processAlignments(values, context, tools, gatk);
+            if (keyPool != null) {
+                // the preprocessing of one key and the GATK steps of parallelKeys keys share the container
+                gatk.setThreads(Math.max(1, threads / parallelKeys));
+                gatk.shareMemory(parallelKeys + 1);
+                tools.shareMemory(parallelKeys + 1);
+                processAlignments(values, context, tools, gatk);
+            } else {
+                GATKToolProcess server = useGATKServer ? takeServer(gatk) : null;
+                try {
+                    processAlignments(values, context, tools, gatk);
+                } finally {
+                    if (server != null) 
+                        gatkServers.add(server);
+                }
+            }
         } catch (URISyntaxException | QualityException | ProcessException ex) {
             Logger.EXCEPTION(ex);
             StringWriter errors = new StringWriter();
@@ -90,22 +136,43 @@ public abstract class GATKReducer extends HalvadeReducer {
         isFirstAttempt = taskId.endsWith("_0");
         isRNA = HalvadeConf.getIsRNA(context.getConfiguration());
         fixQualEnc = HalvadeConf.getFixQualEnc(context.getConfiguration());
+        binQualities = HalvadeConf.getBinQualities(context.getConfiguration());
         keepDups = HalvadeConf.getKeepDups(context.getConfiguration());
+        fastPreprocess = HalvadeConf.getFastPreprocess(context.getConfiguration());
+        inlineMarkDuplicates = HalvadeConf.getInlineMarkDuplicates(context.getConfiguration());
+        tmpBamLevel = HalvadeConf.getTmpBamLevel(context.getConfiguration());
+        useGATKServer = HalvadeConf.getGATKServer(context.getConfiguration());
+        parallelKeys = HalvadeConf.getParallelKeys(context.getConfiguration());
+        if (parallelKeys > 1 && !isRNA) {
+            keyPool = Executors.newFixedThreadPool(parallelKeys);
+            keySlots = new Semaphore(parallelKeys);
+            keyResults = new ArrayList<>();
+        }
         scc = HalvadeConf.getSCC(context.getConfiguration(), isRNA);
         sec = HalvadeConf.getSEC(context.getConfiguration(), isRNA);
         try {
             gff = HalvadeFileUtils.downloadGFF(context);
+            if(HalvadeConf.getSplitHotRegions(context.getConfiguration()))
+                splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
         } catch (URISyntaxException ex) {
             Logger.EXCEPTION(ex);
             throw new InterruptedException("Error when downloading GFF file");
         }
         filterBedFile = HalvadeConf.getFilterBed(context.getConfiguration());
         filterDBsnp = HalvadeConf.getFilterDBSnp(context.getConfiguration());
+        sitesIndex = HalvadeConf.getKnownSitesIndex(context.getConfiguration());
         useUnifiedGenotyper = HalvadeConf.getUseUnifiedGenotyper(context.getConfiguration());
         redistribute = HalvadeConf.getRedistribute(context.getConfiguration());
         containers = HalvadeConf.getMapContainerCount(context.getConfiguration());
         doIndelRealignment = HalvadeConf.getDoIndelRealignment(context.getConfiguration());
         outputGVCF = HalvadeConf.getOutputGVCF(context.getConfiguration());
+        // the table is computed from the preprocessed reads, these can't change afterwards
+        streamBQSR = HalvadeConf.getStreamBQSR(context.getConfiguration());
+        if (streamBQSR && (isRNA || skipBQSR || !inlineMarkDuplicates || doIndelRealignment || sitesIndex == null
+                || filterBedFile != null || HalvadeConf.getSplitNTrim(context.getConfiguration()))) {
+            Logger.DEBUG("streaming recalibration table not possible with these options, using BaseRecalibrator");
+            streamBQSR = false;
+        }
         tasksLeft = Integer.parseInt(context.getConfiguration().get("mapred.map.tasks")) - taskNr;
         // get task number: 
         if (redistribute && tasksLeft < containers) {
@@ -113,6 +180,84 @@ public abstract class GATKReducer extends HalvadeReducer {
         }
     }
 
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        if (keyPool != null) {
+            try {
+                checkRegions(context, true);
+            } finally {
+                keyPool.shutdownNow();
+            }
+        }
+        // stop the servers first, CombineVariants needs the memory
+        GATKToolProcess server = gatkServers.poll();
+        while (server != null) {
+            server.close();
+            server = gatkServers.poll();
+        }
+        super.cleanup(context);
+    }
+
+    protected GATKToolProcess takeServer(GATKTools gatk) {
+        GATKToolProcess server = gatkServers.poll();
+        if (server == null)
+            server = gatk.createServer();
+        gatk.setServer(server);
+        return server;
+    }
+
+    /*
+     * runs the steps of a region on the key pool, the reduce task continues 
+     * with the next key while at most parallelKeys regions are processed
+     */
+    protected void runInKeyPool(final Context context, final GATKTools gatk, final Callable<Void> steps) throws InterruptedException {
+        while (!keySlots.tryAcquire(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) 
+            context.progress();
+        checkRegions(context, false);
+        keyResults.add(keyPool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                GATKToolProcess server = useGATKServer ? takeServer(gatk) : null;
+                try {
+                    return steps.call();
+                } finally {
+                    if (server != null) 
+                        gatkServers.add(server);
+                    keySlots.release();
+                }
+            }
+        }));
+    }
+
+    /*
+     * throws the error of a region that failed, waits for all regions if wait is set
+     */
+    protected void checkRegions(Context context, boolean wait) throws InterruptedException {
+        Iterator<Future<Void>> it = keyResults.iterator();
+        while (it.hasNext()) {
+            Future<Void> result = it.next();
+            if (!wait && !result.isDone())
+                continue;
+            try {
+                boolean done = false;
+                while (!done) {
+                    try {
+                        result.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                        done = true;
+                    } catch (TimeoutException ex) {
+                        context.progress();
+                    }
+                }
+            } catch (ExecutionException ex) {
+                Logger.EXCEPTION(ex);
+                StringWriter errors = new StringWriter();
+                ex.getCause().printStackTrace(new PrintWriter(errors));
+                throw new InterruptedException(ex.getCause().getMessage() + "\n" + errors.toString());
+            }
+            it.remove();
+        }
+    }
+
     protected abstract void processAlignments(Iterable<SAMRecordWritable> values, Context context, PreprocessingTools tools, GATKTools gatk)
             throws IOException, InterruptedException, URISyntaxException, QualityException;
 
@@ -173,7 +318,13 @@ public abstract class GATKReducer extends HalvadeReducer {
         if (!inputIsBam || updateRG) {
             outHeader.addReadGroup(bamrg);
         }
-        SAMFileWriter writer = factory.makeBAMWriter(outHeader, true, new File(tmpOut1));
+        SAMFileWriter writer;
+        if (fastPreprocess) // only read back once by MarkDuplicates, don't compress
+            writer = factory.makeBAMWriter(outHeader, true, new File(tmpOut1), 0);
+        else if (tmpBamLevel >= 0)
+            writer = factory.makeBAMWriter(outHeader, true, new File(tmpOut1), tmpBamLevel);
+        else
+            writer = factory.makeBAMWriter(outHeader, true, new File(tmpOut1));
 
         long startTime = System.currentTimeMillis();
 
@@ -201,7 +352,12 @@ public abstract class GATKReducer extends HalvadeReducer {
 //        }
         Logger.DEBUG("mark duplicates");
         context.setStatus("mark duplicates");
-        tools.runMarkDuplicates(tmpOut1, gff != null ? tmpOut3 : output, tmpMetrics, keepDups);
+        // with fastPreprocess MarkDuplicates writes the final bam and its index, featureCounts reads the bam directly
+        String countsInput = fastPreprocess ? output : tmpOut3;
+        if (fastPreprocess)
+            tools.runMarkDuplicates(tmpOut1, output, tmpMetrics, keepDups, true);
+        else
+            tools.runMarkDuplicates(tmpOut1, gff != null ? tmpOut3 : output, tmpMetrics, keepDups);
         HalvadeFileUtils.removeLocalFile(keep, tmpMetrics, context, HalvadeCounters.FOUT_GATK_TMP);
         HalvadeFileUtils.removeLocalFile(keep, tmpOut1, context, HalvadeCounters.FOUT_GATK_TMP);
 
@@ -209,17 +365,21 @@ public abstract class GATKReducer extends HalvadeReducer {
             // tmpOut3 is sam for htseq count!        
             Logger.DEBUG("featureCounts");
             context.setStatus("featureCounts");
-            tools.runFeatureCounts(gff, tmpOut3, fCounts, threads);
+            tools.runFeatureCounts(gff, countsInput, fCounts, threads);
             HalvadeFileUtils.uploadFileToHDFS(FileSystem.get(new URI(outputdir), context.getConfiguration()),
                     fCounts, outputdir + context.getTaskAttemptID().toString() + ".count");
-            context.setStatus("convert SAM to BAM");
-            Logger.DEBUG("convert SAM to BAM");
-            tools.callSAMToBAM(tmpOut3, output, threads, true);
+            if (!fastPreprocess) {
+                context.setStatus("convert SAM to BAM");
+                Logger.DEBUG("convert SAM to BAM");
+                tools.callSAMToBAM(tmpOut3, output, threads, true);
+            }
         }
 
-        Logger.DEBUG("build bam index");
-        context.setStatus("build bam index");
-        tools.runBuildBamIndex(output);
+        if (!fastPreprocess) {
+            Logger.DEBUG("build bam index");
+            context.setStatus("build bam index");
+            tools.runBuildBamIndex(output);
+        }
 
         estimatedTime = System.currentTimeMillis() - startTime;
         Logger.DEBUG("estimated time: " + estimatedTime / 1000);
@@ -230,7 +390,83 @@ public abstract class GATKReducer extends HalvadeReducer {
         HalvadeFileUtils.removeLocalFile(keep, fCounts);
     }
 
+    protected void inlinePreprocess(Context context, PreprocessingTools tools, SAMRecordIterator input, String output) throws InterruptedException, IOException, URISyntaxException {
+        inlinePreprocess(context, tools, input, output, null);
+    }
+
+    /*
+     * if table is not null, the recalibration table of the marked reads is computed while they are written
+     */
+    protected void inlinePreprocess(Context context, PreprocessingTools tools, SAMRecordIterator input, String output, String table) throws InterruptedException, IOException, URISyntaxException {
+        outHeader = header.clone();
+        outHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        String fCounts = tmpFileBase + "-features.count";
+        SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        factory.setCreateIndex(true);
+        if (!inputIsBam || updateRG) {
+            outHeader.addReadGroup(bamrg);
+        }
+        SAMFileWriter writer;
+        if (tmpBamLevel >= 0)
+            writer = factory.makeBAMWriter(outHeader, true, new File(output), tmpBamLevel);
+        else
+            writer = factory.makeBAMWriter(outHeader, true, new File(output));
+
+        long startTime = System.currentTimeMillis();
+        Logger.DEBUG("mark duplicates");
+        context.setStatus("mark duplicates");
+        DuplicateMarker marker = new DuplicateMarker(input, outHeader, !keepDups);
+        String[] sites = null;
+        StreamingRecalibrator recalibrator = null;
+        if (table != null) {
+            sites = getIndexedSites(context, tmpFileBase, currentKey);
+            recalibrator = new StreamingRecalibrator(outHeader, ref, sites);
+        }
+        SAMRecord sam;
+        while (marker.hasNext()) {
+            sam = marker.next();
+            if(updateRG || !inputIsBam)
+                sam.setAttribute(SAMTag.RG.name(), RGID);
+            writer.addAlignment(sam);
+            if (recalibrator != null)
+                recalibrator.add(sam);
+        }
+        writer.close();
+        if (recalibrator != null) {
+            recalibrator.write(table);
+            recalibrator.close();
+            removeIndexedSites(context, sites);
+            Logger.DEBUG("recalibration table computed from " + recalibrator.getUsedReads() + " of " + recalibrator.getReads() + " reads");
+        }
+        count = marker.getCount();
+        int reads = count;
+
+        context.getCounter(HalvadeCounters.IN_PREP_READS).increment(reads);
+        context.getCounter(HalvadeCounters.OUT_DUPLICATE_READS).increment(marker.getDuplicates());
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        context.getCounter(HalvadeCounters.TIME_INLINE_MARKDUP).increment(estimatedTime);
+        Logger.DEBUG("time marking duplicates and writing " + count + " records to disk: " + estimatedTime / 1000);
+        Logger.DEBUG(marker.getDuplicates() + " duplicates found");
+
+        if (gff != null) {
+            Logger.DEBUG("featureCounts");
+            context.setStatus("featureCounts");
+            tools.runFeatureCounts(gff, output, fCounts, threads);
+            HalvadeFileUtils.uploadFileToHDFS(FileSystem.get(new URI(outputdir), context.getConfiguration()),
+                    fCounts, outputdir + context.getTaskAttemptID().toString() + ".count");
+            HalvadeFileUtils.removeLocalFile(keep, fCounts);
+        }
+    }
+
     protected String makeRegionFile(Context context, ChromosomeRange r, PreprocessingTools tools, String region) throws URISyntaxException, IOException, InterruptedException {
+        // split hot regions overlap, only call variants in the core of the region
+        if (splitter != null) {
+            splitter.clipToCore(currentKey, r);
+            if (r.isEmpty()) {
+                Logger.DEBUG("no reads in the core of this region, no vcf results!!");
+                return null;
+            }
+        }
         // if exome dont do but for exome filter on exomeBedFile
         if (filterBedFile == null) {
             r.writeToPicardRegionFile(region);
@@ -254,7 +490,11 @@ public abstract class GATKReducer extends HalvadeReducer {
     }
 
     protected void indelRealignment(Context context, String region, GATKTools gatk, String input, String output) throws InterruptedException {
-        String targets = tmpFileBase + ".intervals";
+        indelRealignment(context, region, gatk, input, output, tmpFileBase);
+    }
+
+    protected void indelRealignment(Context context, String region, GATKTools gatk, String input, String output, String tmpBase) throws InterruptedException {
+        String targets = tmpBase + ".intervals";
 
         Logger.DEBUG("run RealignerTargetCreator");
         context.setStatus("run RealignerTargetCreator");
@@ -273,14 +513,25 @@ public abstract class GATKReducer extends HalvadeReducer {
 
     protected void baseQualityScoreRecalibration(Context context, String region, ChromosomeRange r, PreprocessingTools tools, GATKTools gatk,
             String input, String output) throws InterruptedException, IOException, URISyntaxException {
-        String table = tmpFileBase + ".table";
+        baseQualityScoreRecalibration(context, region, r, tools, gatk, input, output, tmpFileBase, currentKey);
+    }
+
+    protected void baseQualityScoreRecalibration(Context context, String region, ChromosomeRange r, PreprocessingTools tools, GATKTools gatk,
+            String input, String output, String tmpBase, int key) throws InterruptedException, IOException, URISyntaxException {
+        String table = tmpBase + ".table";
 
         // get snp database(s)
-        String[] snpslocal = HalvadeFileUtils.downloadSites(context, taskId);
+        String[] snpslocal;
+        if (sitesIndex != null) 
+            snpslocal = getIndexedSites(context, tmpBase, key);
+        else 
+            snpslocal = HalvadeFileUtils.downloadSites(context, taskId);
         String[] newKnownSites = new String[snpslocal.length];
         for (int i = 0; i < snpslocal.length; i++) {
-            if (filterDBsnp) {
-                newKnownSites[i] = tools.filterDBSnps(ref.replaceAll("fasta", "dict"), snpslocal[i], r, tmpFileBase, threads);
+            if (sitesIndex != null) {
+                newKnownSites[i] = snpslocal[i];
+            } else if (filterDBsnp) {
+                newKnownSites[i] = tools.filterDBSnps(ref.replaceAll("fasta", "dict"), snpslocal[i], r, tmpBase, threads);
             } else {
                 newKnownSites[i] = snpslocal[i];
             }
@@ -298,6 +549,20 @@ public abstract class GATKReducer extends HalvadeReducer {
         context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
         gatk.runBaseRecalibrator(input, table, ref, newKnownSites, region);
 
+        if (sitesIndex != null) 
+            removeIndexedSites(context, newKnownSites);
+        else if (filterDBsnp) {
+            for (int i = 0; i < newKnownSites.length; i++) 
+                HalvadeFileUtils.removeLocalFile(keep, newKnownSites[i], context, HalvadeCounters.FOUT_GATK_TMP);
+        }
+        printRecalibratedReads(context, region, gatk, input, output, table);
+    }
+
+    /*
+     * applies the recalibration table to the reads
+     */
+    protected void printRecalibratedReads(Context context, String region, GATKTools gatk,
+            String input, String output, String table) throws InterruptedException, IOException, URISyntaxException {
         Logger.DEBUG("run printReads");
         context.setStatus("run printReads");
         context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
@@ -306,11 +571,6 @@ public abstract class GATKReducer extends HalvadeReducer {
         HalvadeFileUtils.removeLocalFile(keep, input, context, HalvadeCounters.FOUT_GATK_TMP);
         HalvadeFileUtils.removeLocalFile(keep, input.replaceAll(".bam", ".bai"));
         HalvadeFileUtils.removeLocalFile(keep, table, context, HalvadeCounters.FOUT_GATK_TMP);
-        for (int i = 0; i < newKnownSites.length; i++) {
-            if (filterDBsnp) {
-                HalvadeFileUtils.removeLocalFile(keep, newKnownSites[i], context, HalvadeCounters.FOUT_GATK_TMP);
-            }
-        }
         
         // copy output to keepBam folder in output if required!
         if (keepBam) {
@@ -319,6 +579,23 @@ public abstract class GATKReducer extends HalvadeReducer {
         }
     }
 
+    /*
+     * only the known sites of this region, no download needed
+     */
+    protected String[] getIndexedSites(Context context, String tmpBase, int key) throws IOException, URISyntaxException {
+        String[] sites = new String[HalvadeConf.getKnownSitesOnHDFS(context.getConfiguration()).length];
+        for (int i = 0; i < sites.length; i++)
+            sites[i] = KnownSitesIndex.getSites(context.getConfiguration(), sitesIndex, i, key, tmpBase + "-sites" + i + ".vcf");
+        return sites;
+    }
+
+    protected void removeIndexedSites(Context context, String[] sites) {
+        for (String site : sites) {
+            HalvadeFileUtils.removeLocalFile(keep, site, context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, site + ".idx");
+        }
+    }
+
     protected void DnaVariantCalling(Context context, String region, GATKTools gatk, String input, String output) throws InterruptedException {
         // choose between unifiendgenotyper vs haplotypegenotyper
         Logger.DEBUG("run variantCaller");
@@ -0,0 +1,26 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
+
+/**
+ * Combines several preprocessed input files in one map task, so one aligner 
+ * process is started for all of them. The files are never split.
+ * 
+ * @author ddecap
+ */
+public class HalvadeCombineTextInputFormat extends CombineTextInputFormat {
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        return false; 
+    }
+    
+}
@@ -36,6 +36,7 @@ public enum HalvadeCounters {
     TIME_HADOOP_SAMTOBAM,
     TIME_PICARD_CLEANSAM,
     TIME_PICARD_MARKDUP,
+    TIME_INLINE_MARKDUP,
     TIME_PICARD_ADDGRP,
     TIME_FEATURECOUNTS,
     TIME_PICARD_BAI,    
@@ -54,6 +55,8 @@ public enum HalvadeCounters {
     OUT_UNMAPPED_READS,
     OUT_DIFF_CHR_READS,
     OUT_OVERLAPPING_READS,
+    OUT_DUPLICATE_READS,
+    OUT_DROPPED_READS,
     
     FOUT_BWA_TMP,
     FOUT_STAR_TMP,
@@ -26,6 +26,9 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
     protected AlignerInstance instance;
     protected boolean allTasksHaveStarted;
     protected int task;
+    protected boolean fastqBlocks;
+    protected double coverageSample;
+    protected int recordLines;
 
     @Override
     protected void cleanup(Context context) throws IOException, InterruptedException {
@@ -34,6 +37,7 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
             Logger.DEBUG(readcount + " fastq reads processed");
             Logger.DEBUG("starting cleanup: closing aligner");
             instance.closeAligner();
+            instance.writeCoverageHistogram(context, task);
             Logger.DEBUG("finished cleanup");
             allTasksHaveStarted = HalvadeConf.allTasksCompleted(task, context.getConfiguration());
         } catch (URISyntaxException ex) {
@@ -42,8 +46,39 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
     }
     
 
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        setup(context);
+        try {
+            while (context.nextKeyValue() && !sampleComplete(context))
+                map(context.getCurrentKey(), context.getCurrentValue(), context);
+        } finally {
+            cleanup(context);
+        }
+    }
+    
+    /*
+     * the coverage sample job only aligns the first part of every split, stops at a read (pair) boundary
+     */
+    protected boolean sampleComplete(Context context) throws IOException, InterruptedException {
+        if(coverageSample <= 0 || (!fastqBlocks && count % recordLines != 0))
+            return false;
+        return context.getProgress() >= coverageSample;
+    }
+
     @Override
     protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+        if(fastqBlocks) {
+            // value contains complete records
+            byte[] bytes = value.getBytes();
+            int lines = 0;
+            for(int i = 0; i < value.getLength(); i++)
+                if(bytes[i] == '\n') lines++;
+            context.getCounter(HalvadeCounters.IN_BWA_READS).increment(lines / 4);
+            readcount += lines / 4;
+            count += lines;
+            return;
+        }
         if(count % 4 == 0) {
             context.getCounter(HalvadeCounters.IN_BWA_READS).increment(1);
             readcount++;
@@ -56,7 +91,10 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
         super.setup(context);
         try {
             count = 0;
-            readcount = -1; // will be 0 at first read  -> means read 1
+            fastqBlocks = HalvadeConf.getFastqBlocks(context.getConfiguration());
+            readcount = fastqBlocks ? 0 : -1; // will be 0 at first read  -> means read 1
+            coverageSample = HalvadeConf.getCoverageSample(context.getConfiguration());
+            recordLines = HalvadeConf.getIsPaired(context.getConfiguration()) ? 8 : 4;
             // add a file to distributed cache representing this task
             String taskId = context.getTaskAttemptID().toString();
             task = Integer.parseInt(taskId.split("_")[4]);
@@ -41,9 +41,11 @@ public class RnaGATKReducer extends GATKReducer {
         
         boolean useElPrep = HalvadeConf.getUseElPrep(context.getConfiguration());
         ChromosomeRange r = new ChromosomeRange();
-        SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r, fixQualEnc);
+        SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r, fixQualEnc, binQualities);
         
-        if(useElPrep && isFirstAttempt)
+        if(inlineMarkDuplicates)
+            inlinePreprocess(context, tools, SAMit, preprocess);
+        else if(useElPrep && isFirstAttempt)
             elPrepPreprocess(context, tools, SAMit, preprocess);
         else {
             if(!isFirstAttempt) Logger.DEBUG("attempt " + taskId + ", preprocessing with Picard for smaller peak memory");
@@ -36,4 +36,9 @@ public class ChrRgGroupingComparator extends WritableComparator {
         ChromosomeRegion r2 = (ChromosomeRegion) b;
         return r1.getReduceNumber() - r2.getReduceNumber();
     }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return readInt(b1, s1 + 8) - readInt(b2, s2 + 8);
+    }
 }
\ No newline at end of file
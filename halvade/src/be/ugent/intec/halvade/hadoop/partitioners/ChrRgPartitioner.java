@@ -18,18 +18,55 @@
 package be.ugent.intec.halvade.hadoop.partitioners;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.Logger;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Partitioner;
 
 /**
+ * Sends every key to the reduce task given by the partition plan,
+ * without a plan the keys are distributed round robin.
  *
  * @author ddecap
  */
-public class ChrRgPartitioner extends Partitioner<ChromosomeRegion, SAMRecordWritable> { 
+public class ChrRgPartitioner extends Partitioner<ChromosomeRegion, SAMRecordWritable> implements Configurable { 
+    protected Configuration conf;
+    protected int[] plan;
+    
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        plan = null;
+        String planFile = HalvadeConf.getPartitionPlan(conf);
+        int reduces = conf.getInt("mapreduce.job.reduces", 1);
+        if(planFile != null) {
+            try {
+                plan = ChromosomeSplitter.importPartitionPlan(planFile, conf, reduces);
+                if(plan == null)
+                    Logger.DEBUG("partition plan is not made for " + reduces + " reduce tasks, using round robin");
+            } catch (URISyntaxException | IOException ex) {
+                Logger.EXCEPTION(ex);
+                plan = null;
+            }
+        }
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
     
     @Override
     public int getPartition(ChromosomeRegion key, SAMRecordWritable value, int numReduceTasks) {
-        return key.getReduceNumber() % numReduceTasks;
+        int reduceNumber = key.getReduceNumber();
+        if(plan != null && reduceNumber < plan.length)
+            return plan[reduceNumber] % numReduceTasks;
+        return reduceNumber % numReduceTasks;
     }
     
 }
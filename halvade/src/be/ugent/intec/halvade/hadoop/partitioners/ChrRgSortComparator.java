@@ -43,4 +43,22 @@ public class ChrRgSortComparator  extends WritableComparator {
         } else
             return r1.getReduceNumber() - r2.getReduceNumber();  
     }
+
+    /*
+     * compares the serialized keys: chromosome (0), position (4), reduceNumber (8)
+     */
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int rn1 = readInt(b1, s1 + 8);
+        int rn2 = readInt(b2, s2 + 8);
+        if(rn1 == rn2) {
+            int chr1 = readInt(b1, s1);
+            int chr2 = readInt(b2, s2);
+            if(chr1 == chr2)
+                return readInt(b1, s1 + 4) - readInt(b2, s2 + 4);
+            else 
+                return chr1 - chr2;
+        } else
+            return rn1 - rn2;
+    }
 }
@@ -36,4 +36,17 @@ public class GenomeSJSortComparator extends WritableComparator {
         GenomeSJ sj2 = (GenomeSJ) b;
         return sj1.compareTo(sj2); 
     }
+
+    /*
+     * compares the serialized keys: type (0), secondary_key (4)
+     */
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int type1 = readInt(b1, s1);
+        int type2 = readInt(b2, s2);
+        if(type1 == type2)
+            return readInt(b1, s1 + 4) - readInt(b2, s2 + 4);
+        else 
+            return type1 - type2;
+    }
 }
@@ -28,4 +28,14 @@ public class SimpleChrRegionComparator   extends WritableComparator {
         else 
             return r1.getChromosome() - r2.getChromosome();
     }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int chr1 = readInt(b1, s1);
+        int chr2 = readInt(b2, s2);
+        if(chr1 == chr2)
+            return readInt(b1, s1 + 4) - readInt(b2, s2 + 4);
+        else 
+            return chr1 - chr2;
+    }
 }
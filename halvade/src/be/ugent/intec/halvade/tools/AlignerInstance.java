@@ -18,9 +18,11 @@
 package be.ugent.intec.halvade.tools;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.CompactSAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.CoverageHistogram;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
@@ -29,11 +31,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.HashSet;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 /**
  *
@@ -58,10 +63,16 @@ public abstract class AlignerInstance {
     protected boolean keepChrSplitPairs;
     protected boolean keep = false;
     protected ChromosomeSplitter splitter;
+    protected int[] regionKeys;
     protected int containers;
     protected int tasksLeft;
     protected boolean redistribute;
     protected boolean mergeBam;
+    protected CoverageHistogram coverage;
+    protected boolean preciseRouting;
+    protected int mateMargin;
+    protected HashSet<String> keptTags;
+    protected boolean dropSecondary;
     
     
     protected AlignerInstance(Mapper.Context context, String bin, int task) throws IOException, URISyntaxException {
@@ -71,7 +82,14 @@ public abstract class AlignerInstance {
         tasksLeft = HalvadeConf.getMapTasksLeft(task, context.getConfiguration());
         redistribute = HalvadeConf.getRedistribute(context.getConfiguration());
         mergeBam = HalvadeConf.getMergeBam(context.getConfiguration());
-        writableRecord = new SAMRecordWritable();
+        if(HalvadeConf.getCompactShuffle(context.getConfiguration())) {
+            CompactSAMRecordWritable compactRecord = new CompactSAMRecordWritable();
+            compactRecord.setBinQualities(HalvadeConf.getBinQualities(context.getConfiguration()));
+            if(HalvadeConf.getKeptTags(context.getConfiguration()) != null)
+                compactRecord.setKeptTags(HalvadeConf.getKeptTags(context.getConfiguration()));
+            writableRecord = compactRecord;
+        } else
+            writableRecord = new SAMRecordWritable();
         writableRegion = new ChromosomeRegion();
         writeableCompactRegion = new GenomeSJ();
         stub = new Text();
@@ -87,8 +105,18 @@ public abstract class AlignerInstance {
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
         Logger.DEBUG("paired? " + isPaired);
         splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
+        regionKeys = new int[ChromosomeSplitter.MAX_KEYS_PER_READ];
         keepChrSplitPairs = HalvadeConf.getkeepChrSplitPairs(context.getConfiguration());
         keep = HalvadeConf.getKeepFiles(context.getConfiguration());
+        String[] tags = HalvadeConf.getKeptTags(context.getConfiguration());
+        // the compact format only writes the kept tags
+        keptTags = tags == null || writableRecord instanceof CompactSAMRecordWritable ? null : new HashSet<>(Arrays.asList(tags));
+        dropSecondary = HalvadeConf.getDropSecondary(context.getConfiguration());
+        preciseRouting = HalvadeConf.getPreciseRouting(context.getConfiguration());
+        // the inline duplicate marking doesn't need the mate, picard and elprep do
+        mateMargin = HalvadeConf.getInlineMarkDuplicates(context.getConfiguration()) ? ChromosomeSplitter.MATE_MARGIN : -1;
+        if(HalvadeConf.getCoverageSample(context.getConfiguration()) > 0)
+            coverage = new CoverageHistogram(CoverageHistogram.DEFAULT_BIN_SIZE);
     }
     
     protected void getIdleCores(Mapper.Context context) throws IOException {
@@ -105,24 +133,52 @@ public abstract class AlignerInstance {
         return 0;
     }
     
+    /*
+     * removes what the reducers don't use before the record is serialized,
+     * returns false if the record is not needed at all
+     */
+    protected boolean compactRecord(SAMRecord sam) {
+        if(dropSecondary && (sam.getNotPrimaryAlignmentFlag() || sam.getSupplementaryAlignmentFlag())) {
+            context.getCounter(HalvadeCounters.OUT_DROPPED_READS).increment(1);
+            return false;
+        }
+        if(keptTags != null) {
+            for (SAMRecord.SAMTagAndValue attribute : sam.getAttributes()) {
+                if(!keptTags.contains(attribute.tag))
+                    sam.setAttribute(attribute.tag, null);
+            }
+        }
+        return true;
+    }
+    
     public int writePairedSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
         int count = 0;
+        if(!compactRecord(sam))
+            return count;
         int read1Ref = sam.getReferenceIndex();
         int read2Ref = sam.getMateReferenceIndex();
         if (!sam.getReadUnmappedFlag() && 
                 (read1Ref == read2Ref || keepChrSplitPairs) && 
                 (read1Ref >= 0 || read2Ref >= 0)) {
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
+            if(coverage != null) {
+                coverage.add(sam);
+                return 1;
+            }
             writableRecord.set(sam);
             int beginpos = sam.getAlignmentStart();
-            HashSet<Integer> keys = null;
-            if (!mergeBam)
-                 keys = splitter.getRegions(sam, read1Ref, read2Ref);
-            else {
-                keys = new HashSet<>();
-                keys.add(0);
-            }
-            for(Integer key : keys) {
+            int keyCount;
+            if (mergeBam) {
+                regionKeys[0] = 0;
+                keyCount = 1;
+            } else if (preciseRouting)
+                keyCount = splitter.getRegions(sam, read1Ref, read2Ref, regionKeys, mateMargin);
+            else
+                keyCount = splitter.getRegions(sam, read1Ref, read2Ref, regionKeys);
+            if(keyCount > 1)
+                context.getCounter(HalvadeCounters.OUT_OVERLAPPING_READS).increment(keyCount - 1);
+            for(int i = 0; i < keyCount; i++) {
+                int key = regionKeys[i];
                 if(useCompact) {
                     writeableCompactRegion.setRegion(key, beginpos);
                     context.write(writeableCompactRegion, stub);
@@ -143,19 +199,28 @@ public abstract class AlignerInstance {
     
     public int writeSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
         int count = 0;
+        if(!compactRecord(sam))
+            return count;
         if (!sam.getReadUnmappedFlag()){
             int read1Ref = sam.getReferenceIndex();
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
+            if(coverage != null) {
+                coverage.add(sam);
+                return 1;
+            }
             writableRecord.set(sam);
             int beginpos = sam.getAlignmentStart();
-            HashSet<Integer> keys = null;
+            int keyCount;
             if (!mergeBam)
-                 keys = splitter.getRegions(sam, read1Ref);
+                keyCount = splitter.getRegions(sam, read1Ref, regionKeys);
             else {
-                keys = new HashSet<>();
-                keys.add(0);
+                regionKeys[0] = 0;
+                keyCount = 1;
             }
-            for(Integer key : keys) {
+            if(keyCount > 1)
+                context.getCounter(HalvadeCounters.OUT_OVERLAPPING_READS).increment(keyCount - 1);
+            for(int i = 0; i < keyCount; i++) {
+                int key = regionKeys[i];
                 if(useCompact) {
                     writeableCompactRegion.setRegion(key, beginpos);
                     context.write(writeableCompactRegion, stub);
@@ -171,6 +236,19 @@ public abstract class AlignerInstance {
         return count;
     }
     
+    /*
+     * the histogram is written in the task output directory so only successful attempts are kept
+     */
+    public void writeCoverageHistogram(Mapper.Context context, int task) throws IOException, InterruptedException {
+        if(coverage == null) return;
+        Path file = new Path(FileOutputFormat.getWorkOutputPath(context), CoverageHistogram.FILE_PREFIX + task);
+        coverage.write(file.getFileSystem(context.getConfiguration()), file);
+    }
+    
+    public String getBinDir() {
+        return bin;
+    }
+    
     public SAMFileHeader getFileHeader() {
         return header;
     }
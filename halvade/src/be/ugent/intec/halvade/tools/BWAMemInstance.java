@@ -20,6 +20,7 @@ package be.ugent.intec.halvade.tools;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import java.io.IOException;
 import java.io.InputStream;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 import be.ugent.intec.halvade.utils.*;
 import java.net.URISyntaxException;
@@ -34,7 +35,9 @@ public class BWAMemInstance extends AlignerInstance {
     private static BWAMemInstance instance;
     private ProcessBuilderWrapper pbw;
     private SAMStreamHandler ssh;
+    private AsyncStreamWriter feeder;
     private String taskId;
+    protected static final String SH_MEM_LOCK = "load_bwa_sh_mem.lock";
     /**
      * 
      * This BWA instance runs BWA from stdin (custom provided BWA is needed)
@@ -45,10 +48,47 @@ public class BWAMemInstance extends AlignerInstance {
         taskId = taskId.substring(taskId.indexOf("m_"));
         ref = HalvadeFileUtils.downloadBWAIndex(context);
         System.out.println("reference: " + ref);
+        if(HalvadeConf.getBwaSharedMemory(context.getConfiguration())) {
+            try {
+                loadSharedMemoryReference(false);
+            } catch (InterruptedException ex) {
+                Logger.EXCEPTION(ex);
+                throw new IOException("Error when loading the BWA index into shared memory");
+            }
+        }
+    }
+    
+    /**
+     * bwa shm skips loading if the index is already in shared memory, 
+     * bwa mem uses the shared index if it has the same name
+     */
+    public void loadSharedMemoryReference(boolean unload) throws InterruptedException, IOException {
+        String tmpDir = HalvadeConf.getScratchTempDir(context.getConfiguration());
+        HalvadeFileLock lock = new HalvadeFileLock(tmpDir, SH_MEM_LOCK);
+        try {
+            lock.getLock();
+            if(unload)  Logger.DEBUG("Remove BWA index from shared memory.");
+            else Logger.DEBUG("Load BWA index [" + ref + "] to shared memory");
+            String[] command = CommandGenerator.bwaShm(bin, ref, tmpDir + "bwa_shm_" + taskId + ".tmp", unload);
+            ProcessBuilderWrapper shm = new ProcessBuilderWrapper(command, bin);
+            shm.startProcess(System.out, System.err);
+            int error = shm.waitForCompletion();
+            if(error != 0)
+                throw new ProcessException("BWA shm", error);
+            Logger.DEBUG("estimated time: " + shm.getExecutionTime() / 1000);
+        } finally {
+            lock.removeAndReleaseLock();
+        }
     }
     
-    public int feedLine(String line) throws IOException  {
-        return feedLine(line, pbw);
+    public int feedLine(Text line) throws IOException  {
+        feeder.writeLine(line.getBytes(), 0, line.getLength());
+        return 0;
+    }
+    
+    public int feedBlock(Text block) throws IOException  {
+        feeder.write(block.getBytes(), 0, block.getLength());
+        return 0;
     }
     
     @Override
@@ -63,7 +103,8 @@ public class BWAMemInstance extends AlignerInstance {
         // check if alive.
         if(!pbw.isAlive())
             throw new ProcessException("BWA mem", pbw.getExitState());
-        pbw.getSTDINWriter();
+        // reads are written to stdin on a separate thread
+        feeder = new AsyncStreamWriter(pbw.getSTDINStream());
         // make a SAMstream handler
         ssh = new SAMStreamHandler(instance, context, false);
         ssh.start();
@@ -82,8 +123,7 @@ public class BWAMemInstance extends AlignerInstance {
     public void closeAligner() throws InterruptedException {
         try {
             // close the input stream
-            pbw.getSTDINWriter().flush();
-            pbw.getSTDINWriter().close();
+            feeder.close();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
@@ -114,8 +154,7 @@ public class BWAMemInstance extends AlignerInstance {
     @Override
     public void flushStream() {
         try {
-            // close the input stream
-            pbw.getSTDINWriter().flush();
+            feeder.flush();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
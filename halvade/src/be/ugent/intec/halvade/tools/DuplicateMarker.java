@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SAMUtils;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Marks duplicates in a coordinate sorted stream of reads, without writing
+ * the reads to disk first. Reads are grouped on the 5' positions and strands
+ * of both ends of the pair (or of the read itself for fragments) and in every
+ * group only the read (pair) with the highest sum of base qualities of at 
+ * least 15 is kept, as in Picard, the smallest name breaks ties. This makes 
+ * the decision identical for both mates and for reads that are sent to 
+ * several regions. A fragment is always a duplicate if a pair has an end at 
+ * the same position, as in Picard.
+ * The 5' end and score of the mate are taken from the MC and ms tags, without 
+ * them the read waits for the mate record if the mate starts within the 
+ * window. Pairs with a mate further away or missing use the MC tag or the 
+ * alignment starts of both ends and are only decided by name.
+ * Reads are kept in a window of window bp behind the current position so that
+ * all reads of a group are seen before the first one is returned.
+ *
+ * @author ddecap
+ */
+public class DuplicateMarker implements Iterator<SAMRecord> {
+    public static final int DEFAULT_WINDOW = 1000;
+    protected static final String MATE_SCORE = "ms";
+    protected static final int MIN_SCORE_QUALITY = 15;
+
+    protected Iterator<SAMRecord> it;
+    protected SAMFileHeader header;
+    protected int window;
+    protected boolean removeDuplicates;
+    protected ArrayDeque<PendingRecord> pending;
+    protected HashMap<Signature, Group> groups;
+    protected PriorityQueue<Group> expiring;
+    protected HashMap<String, String> libraries;
+    protected HashMap<String, PendingRecord> mates;
+    protected long currentPosition = Long.MIN_VALUE;
+    protected SAMRecord next = null;
+    protected int duplicates = 0;
+    protected int reads = 0;
+
+    public DuplicateMarker(Iterator<SAMRecord> it, SAMFileHeader header, boolean removeDuplicates) {
+        this(it, header, removeDuplicates, DEFAULT_WINDOW);
+    }
+
+    public DuplicateMarker(Iterator<SAMRecord> it, SAMFileHeader header, boolean removeDuplicates, int window) {
+        this.it = it;
+        this.header = header;
+        this.removeDuplicates = removeDuplicates;
+        this.window = window;
+        pending = new ArrayDeque<>();
+        groups = new HashMap<>();
+        expiring = new PriorityQueue<>();
+        libraries = new HashMap<>();
+        mates = new HashMap<>();
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if(next == null)
+            throw new NoSuchElementException();
+        SAMRecord tmp = next;
+        advance();
+        return tmp;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    public int getCount() {
+        return reads;
+    }
+
+    private void advance() {
+        next = null;
+        while(next == null) {
+            while (it.hasNext() && (pending.isEmpty() || pending.peekFirst().readyPosition + window >= currentPosition))
+                add(it.next());
+            if(pending.isEmpty())
+                return;
+            PendingRecord p = pending.pollFirst();
+            if(p.waiting) {
+                // the mate was not in this stream
+                mates.remove(p.sam.getReadName());
+                addPairWithoutMate(p);
+            }
+            if(p.isDuplicate()) {
+                p.sam.setDuplicateReadFlag(true);
+                duplicates++;
+                if(!removeDuplicates) next = p.sam;
+            } else {
+                p.sam.setDuplicateReadFlag(false);
+                next = p.sam;
+            }
+        }
+    }
+
+    private void add(SAMRecord sam) {
+        reads++;
+        PendingRecord p = new PendingRecord(sam);
+        if(sam.getReadUnmappedFlag() || sam.getNotPrimaryAlignmentFlag() || sam.getSupplementaryAlignmentFlag()) {
+            // unmapped reads placed with their mate keep their position, not marked
+            p.position = sam.getReferenceIndex() < 0 ? currentPosition : position(sam.getReferenceIndex(), sam.getAlignmentStart());
+        } else {
+            p.position = position(sam.getReferenceIndex(), sam.getAlignmentStart());
+            p.library = getLibrary(sam);
+            p.end = end(sam.getReferenceIndex(), fivePrime(sam), sam.getReadNegativeStrandFlag());
+            p.score = score(sam);
+            boolean pair = sam.getReadPairedFlag() && !sam.getMateUnmappedFlag();
+            if(pair) {
+                long matePosition = position(sam.getMateReferenceIndex(), sam.getMateAlignmentStart());
+                // fragments at the position of a pair are duplicates
+                getGroup(new Signature(p.end, 0, p.library, false), p.position).hasPair = true;
+                PendingRecord mate = mates.remove(sam.getReadName());
+                Integer mateScore = sam.getIntegerAttribute(MATE_SCORE);
+                if(mate != null) {
+                    mate.waiting = false;
+                    addPair(mate, p.end, p.position, mate.score + p.score);
+                    p.group = mate.group;
+                } else if(SAMUtils.hasMateCigar(sam) && mateScore != null) {
+                    long mateEnd = end(sam.getMateReferenceIndex(), mateFivePrime(sam), sam.getMateNegativeStrandFlag());
+                    addPair(p, mateEnd, matePosition, p.score + mateScore);
+                    getGroup(new Signature(mateEnd, 0, p.library, false), matePosition).hasPair = true;
+                } else if(sam.getReferenceIndex().equals(sam.getMateReferenceIndex()) && matePosition >= p.position 
+                        && matePosition - p.position <= window) {
+                    // the 5' end of the mate is only known from the mate record
+                    p.waiting = true;
+                    p.readyPosition = matePosition;
+                    mates.put(sam.getReadName(), p);
+                } else {
+                    addPairWithoutMate(p);
+                }
+            } else {
+                p.group = getGroup(new Signature(p.end, 0, p.library, false), p.position);
+                p.group.add(sam.getReadName(), p.score);
+            }
+        }
+        if(!p.waiting)
+            p.readyPosition = p.position;
+        if(p.position > currentPosition) {
+            currentPosition = p.position;
+            evict();
+        }
+        pending.addLast(p);
+    }
+
+    private void addPair(PendingRecord p, long mateEnd, long matePosition, int score) {
+        p.group = getGroup(new Signature(Math.min(p.end, mateEnd), Math.max(p.end, mateEnd), p.library, true),
+                Math.max(p.position, matePosition));
+        p.group.add(p.sam.getReadName(), score);
+    }
+
+    /*
+     * the ends from the MC tag or the alignment starts are the same for both mates,
+     * the score of the mate is unknown so the name decides
+     */
+    private void addPairWithoutMate(PendingRecord p) {
+        SAMRecord sam = p.sam;
+        boolean mc = SAMUtils.hasMateCigar(sam);
+        long pairEnd = mc ? p.end : end(sam.getReferenceIndex(), sam.getAlignmentStart(), sam.getReadNegativeStrandFlag());
+        long mateEnd = end(sam.getMateReferenceIndex(), mc ? mateFivePrime(sam) : sam.getMateAlignmentStart(), sam.getMateNegativeStrandFlag());
+        p.group = getGroup(new Signature(Math.min(pairEnd, mateEnd), Math.max(pairEnd, mateEnd), p.library, true),
+                Math.max(p.position, position(sam.getMateReferenceIndex(), sam.getMateAlignmentStart())));
+        p.group.add(sam.getReadName(), 0);
+        p.waiting = false;
+    }
+
+    private Group getGroup(Signature s, long lastPosition) {
+        Group g = groups.get(s);
+        if(g == null) {
+            g = new Group(s);
+            groups.put(s, g);
+            g.expiry = lastPosition + 2 * window;
+            expiring.add(g);
+        }
+        return g;
+    }
+
+    /*
+     * groups are only needed for new reads, pending reads keep a reference to their own group
+     */
+    private void evict() {
+        while(!expiring.isEmpty() && expiring.peek().expiry < currentPosition) {
+            Group g = expiring.poll();
+            groups.remove(g.signature);
+        }
+    }
+
+    private String getLibrary(SAMRecord sam) {
+        String rg = sam.getStringAttribute(SAMTag.RG.name());
+        if(rg == null) return "";
+        String library = libraries.get(rg);
+        if(library == null) {
+            SAMReadGroupRecord record = header.getReadGroup(rg);
+            library = record == null || record.getLibrary() == null ? rg : record.getLibrary();
+            libraries.put(rg, library);
+        }
+        return library;
+    }
+
+    /*
+     * the sum of the base qualities of at least 15, as the default scoring of Picard
+     */
+    private static int score(SAMRecord sam) {
+        int score = 0;
+        for (byte q : sam.getBaseQualities())
+            if(q >= MIN_SCORE_QUALITY) score += q;
+        return score;
+    }
+
+    private static int fivePrime(SAMRecord sam) {
+        return sam.getReadNegativeStrandFlag() ? sam.getUnclippedEnd() : sam.getUnclippedStart();
+    }
+
+    private static int mateFivePrime(SAMRecord sam) {
+        return sam.getMateNegativeStrandFlag() ? SAMUtils.getMateUnclippedEnd(sam) : SAMUtils.getMateUnclippedStart(sam);
+    }
+
+    private static long position(int ref, int pos) {
+        return ((long)ref << 32) + pos;
+    }
+
+    private static long end(int ref, int pos, boolean reverse) {
+        // unclipped positions can be negative
+        return ((long)ref << 34) + (((long)pos + Integer.MAX_VALUE) << 1) + (reverse ? 1 : 0);
+    }
+
+    protected static class Signature {
+        protected long end1, end2;
+        protected String library;
+        protected boolean pair;
+
+        protected Signature(long end1, long end2, String library, boolean pair) {
+            this.end1 = end1;
+            this.end2 = end2;
+            this.library = library;
+            this.pair = pair;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int)(end1 ^ (end1 >>> 32));
+            hash = 31 * hash + (int)(end2 ^ (end2 >>> 32));
+            hash = 31 * hash + library.hashCode();
+            return pair ? hash : ~hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Signature)) return false;
+            Signature o = (Signature) obj;
+            return end1 == o.end1 && end2 == o.end2 && pair == o.pair && library.equals(o.library);
+        }
+    }
+
+    protected static class Group implements Comparable<Group> {
+        protected Signature signature;
+        protected String bestName = null;
+        protected int bestScore = 0;
+        protected boolean hasPair = false;
+        protected long expiry;
+
+        protected Group(Signature signature) {
+            this.signature = signature;
+        }
+
+        protected void add(String name, int score) {
+            if(bestName == null || score > bestScore || (score == bestScore && name.compareTo(bestName) < 0)) {
+                bestName = name;
+                bestScore = score;
+            }
+        }
+
+        @Override
+        public int compareTo(Group o) {
+            return Long.compare(expiry, o.expiry);
+        }
+    }
+
+    protected static class PendingRecord {
+        protected SAMRecord sam;
+        protected Group group = null;
+        protected long position;
+        protected long readyPosition;
+        protected long end;
+        protected String library;
+        protected int score;
+        protected boolean waiting = false;
+
+        protected PendingRecord(SAMRecord sam) {
+            this.sam = sam;
+        }
+
+        protected boolean isDuplicate() {
+            if(group == null)
+                return false;
+            if(!group.signature.pair && group.hasPair)
+                return true;
+            return !sam.getReadName().equals(group.bestName);
+        }
+    }
+}
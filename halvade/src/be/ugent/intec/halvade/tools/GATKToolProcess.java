@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import be.ugent.intec.halvade.utils.Logger;
+import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Long running GATKToolServer process of a reduce task. The JVM is started
+ * with the first command and used for all GATK steps of all regions of the task,
+ * this avoids starting a JVM and loading the GATK classes for every step.
+ * The server is restarted after a command fails.
+ *
+ * @author ddecap
+ */
+public class GATKToolProcess {
+    protected String[] command;
+    protected ProcessBuilderWrapper builder = null;
+    protected BufferedWriter commands;
+    protected BufferedReader replies;
+
+    public GATKToolProcess(ArrayList<String> java, String mem, String gatk) {
+        ArrayList<String> cmd = new ArrayList<>(java);
+        cmd.add(mem);
+        cmd.add("-cp");
+        // GATK first so it uses its own version of the libraries
+        cmd.add(gatk + ":" + GATKToolServer.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        cmd.add(GATKToolServer.class.getName());
+        command = cmd.toArray(new String[cmd.size()]);
+    }
+
+    /**
+     * runs the GATK with these arguments in the server
+     * @return the exit code of the GATK
+     */
+    public int run(String name, String[] args) throws InterruptedException {
+        if(builder == null || builder.getState() != 1)
+            start();
+        Logger.DEBUG("running " + name + " in GATK server: " + Arrays.toString(args));
+        try {
+            StringBuilder line = new StringBuilder();
+            for (String arg : args)
+                line.append(line.length() == 0 ? "" : "\t").append(arg);
+            commands.write(line.toString());
+            commands.newLine();
+            commands.flush();
+            String reply = replies.readLine();
+            while(reply != null && !reply.startsWith(GATKToolServer.DONE)) {
+                Logger.DEBUG(reply);
+                reply = replies.readLine();
+            }
+            if(reply == null) {
+                Logger.DEBUG("GATK server stopped");
+                close();
+                return -1;
+            }
+            int exit = Integer.parseInt(reply.substring(GATKToolServer.DONE.length() + 1));
+            if(exit != 0)
+                close();
+            return exit;
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            close();
+            throw new ProcessException(name, -1);
+        }
+    }
+
+    protected void start() throws InterruptedException {
+        builder = new ProcessBuilderWrapper(command, null);
+        builder.startProcess(null, System.err);
+        commands = builder.getSTDINWriter();
+        replies = new BufferedReader(new InputStreamReader(builder.getSTDOUTStream()));
+    }
+
+    /*
+     * closing stdin stops the server
+     */
+    public void close() throws InterruptedException {
+        if(builder == null)
+            return;
+        try {
+            commands.close();
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+        }
+        int error = builder.waitForCompletion();
+        Logger.DEBUG("GATK server stopped with " + error);
+        builder = null;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs GATK commands in one JVM. Every line on stdin is one command with the
+ * GATK arguments separated by tabs, the exit code of the command is written to
+ * stdout as DONE followed by a tab and the code. The output of GATK itself is
+ * written to stderr. The server stops when stdin is closed.
+ * This class is started with the GATK jar first on the classpath and only uses
+ * the JDK, so the classes of the GATK are never mixed with those of Halvade.
+ *
+ * @author ddecap
+ */
+public class GATKToolServer {
+    public static final String DONE = "halvade-gatk-done";
+    // main class and command line program class of GATK 3.4 and later, and of older versions
+    protected static final String[][] GATK_CLASSES = {
+        {"org.broadinstitute.gatk.engine.CommandLineGATK", "org.broadinstitute.gatk.utils.commandline.CommandLineProgram"},
+        {"org.broadinstitute.sting.gatk.CommandLineGATK", "org.broadinstitute.sting.commandline.CommandLineProgram"}
+    };
+
+    public static void main(String[] args) throws IOException {
+        PrintStream replies = System.out;
+        System.setOut(System.err);
+        Class<?> gatk = null;
+        Class<?> program = null;
+        for (String[] names : GATK_CLASSES) {
+            try {
+                gatk = Class.forName(names[0]);
+                program = Class.forName(names[1]);
+                break;
+            } catch (ClassNotFoundException ex) {
+                gatk = null;
+            }
+        }
+        if(gatk == null) {
+            System.err.println("GATK not found on the classpath");
+            System.exit(1);
+        }
+        Method start;
+        try {
+            start = program.getMethod("start", program, String[].class);
+        } catch (NoSuchMethodException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        Field result = null;
+        try {
+            result = program.getField("result");
+        } catch (NoSuchFieldException ex) {
+            System.err.println("no exit code available, commands without exception return 0");
+        }
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        String line = commands.readLine();
+        while(line != null) {
+            if(!line.isEmpty()) {
+                int exit;
+                try {
+                    if(result != null)
+                        result.setInt(null, 0);
+                    start.invoke(null, gatk.getConstructor().newInstance(), line.split("\t"));
+                    exit = result == null ? 0 : result.getInt(null);
+                } catch (InvocationTargetException ex) {
+                    ex.getCause().printStackTrace();
+                    exit = 1;
+                } catch (InstantiationException | IllegalAccessException | NoSuchMethodException ex) {
+                    ex.printStackTrace();
+                    exit = 1;
+                }
+                replies.println(DONE + "\t" + exit);
+                replies.flush();
+            }
+            line = commands.readLine();
+        }
+    }
+}
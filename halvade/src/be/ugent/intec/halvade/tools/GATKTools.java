@@ -48,6 +48,7 @@ public class GATKTools {
     DecimalFormat onedec;
     Reducer.Context context;
     String javaTmpdir = "-Djava.io.tmpdir=";
+    GATKToolProcess server = null;
     
     public void setThreads(int threads) {
         this.threads = threads;
@@ -85,6 +86,24 @@ public class GATKTools {
         this.java.set(0, java);
     }  
     
+    /*
+     * shares the memory of the reduce container with the tools of other regions that run at the same time
+     */
+    public void shareMemory(int parts) {
+        mem = "-Xmx" + (int)(0.8*Integer.parseInt(context.getConfiguration().get("mapreduce.reduce.memory.mb")) / parts) + "m";
+    }
+    
+    /*
+     * runs the GATK commands in this server instead of starting a JVM for every command
+     */
+    public void setServer(GATKToolProcess server) {
+        this.server = server;
+    }
+    
+    public GATKToolProcess createServer() {
+        return new GATKToolProcess(java, mem, gatk);
+    }
+    
     public String roundOneDecimal(double val) {
         return onedec.format(val);
     }
@@ -470,9 +489,16 @@ public class GATKTools {
         long startTime = System.currentTimeMillis();
 //        HalvadeHeartBeat hhb = new HalvadeHeartBeat(context);
 //        hhb.start();
-        ProcessBuilderWrapper builder = new ProcessBuilderWrapper(command, null);
-        builder.startProcess(true);
-        int error = builder.waitForCompletion();
+        int error;
+        if(server != null) {
+            // only the GATK arguments, the java options are those of the server
+            int jar = Arrays.asList(command).indexOf(gatk);
+            error = server.run(name, Arrays.copyOfRange(command, jar + 1, command.length));
+        } else {
+            ProcessBuilderWrapper builder = new ProcessBuilderWrapper(command, null);
+            builder.startProcess(true);
+            error = builder.waitForCompletion();
+        }
 //        hhb.jobFinished();
 //        hhb.join();
         if(error != 0)
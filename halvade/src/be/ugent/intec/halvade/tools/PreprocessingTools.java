@@ -53,17 +53,26 @@ public class PreprocessingTools {
     ArrayList<String> java;
     String mem = "-Xmx2g";
     String javaTmpdir = "-Djava.io.tmpdir=";
+    int compressionLevel = -1;
 
     public void setContext(Reducer.Context context) {
         this.context = context;
         mem = "-Xmx" + (int)(0.8*Integer.parseInt(context.getConfiguration().get("mapreduce.reduce.memory.mb"))) + "m";
 //        mem = context.getConfiguration().get("mapreduce.reduce.java.opts");
         java.add(javaTmpdir + HalvadeConf.getScratchTempDir(context.getConfiguration()) + "javatmp/");
+        compressionLevel = HalvadeConf.getTmpBamLevel(context.getConfiguration());
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "java", "");  
         if(customArgs != null)
             java.add(customArgs);
     }
     
+    /*
+     * shares the memory of the reduce container with the tools of other regions that run at the same time
+     */
+    public void shareMemory(int parts) {
+        mem = "-Xmx" + (int)(0.8*Integer.parseInt(context.getConfiguration().get("mapreduce.reduce.memory.mb")) / parts) + "m";
+    }
+    
     public PreprocessingTools(String bin) {
         this.bin = bin;
         java = new ArrayList<>();
@@ -240,7 +249,7 @@ public class PreprocessingTools {
     
     public void callSAMToBAM(String input, String output, int threads, boolean keepDups) throws InterruptedException {
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "samtools", "view");  
-        String[] command = CommandGenerator.SAMToolsView(bin, input, output, threads, keepDups, customArgs);
+        String[] command = CommandGenerator.SAMToolsView(bin, input, output, threads, keepDups, compressionLevel, customArgs);
         long estimatedTime = runProcessAndWait("SAMtools view", command); 
         if(context != null)
             context.getCounter(HalvadeCounters.TIME_SAMTOBAM).increment(estimatedTime);
@@ -344,6 +353,9 @@ public class PreprocessingTools {
         return 0;
     }
     public int runMarkDuplicates(String input, String output, String metrics, boolean keepDups) throws InterruptedException {
+        return runMarkDuplicates(input, output, metrics, keepDups, false);
+    }
+    public int runMarkDuplicates(String input, String output, String metrics, boolean keepDups, boolean createIndex) throws InterruptedException {
         String tool;
         if(bin.endsWith("/")) 
             tool = bin + picard;
@@ -362,6 +374,10 @@ public class PreprocessingTools {
         command.add("ASSUME_SORTED=true");
         if(!keepDups)
             command.add("REMOVE_DUPLICATES=true");
+        if(createIndex)
+            command.add("CREATE_INDEX=true");
+        if(compressionLevel >= 0)
+            command.add("COMPRESSION_LEVEL=" + compressionLevel);
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "picard", "markduplicates");  
         command = CommandGenerator.addToCommand(command, customArgs);        
         long estimatedTime = runProcessAndWait("Picard MarkDuplicates", GetStringVector(command));
@@ -23,11 +23,7 @@ public class QualityEncoding {
     private static final int REASONABLE_SANGER_THRESHOLD = 60;
     
     public static QENCODING guessEncoding(final SAMRecord read) throws QualityException {
-        final byte[] quals = read.getBaseQualities();
-        byte max = quals[0];
-        for ( int i = 0; i < quals.length; i++ ) {
-            if(quals[i] > max) max =quals[i];
-        }
+        final int max = maxQuality(read.getBaseQualities());
         Logger.DEBUG("Max quality: " + max, 3);
         if(max <= REASONABLE_SANGER_THRESHOLD) {
             Logger.DEBUG("SANGER Quality encoding");
@@ -38,15 +34,119 @@ public class QualityEncoding {
         }
     }
     
+    /*
+     * four independent maxima of 8 qualities at a time, so the loop doesn't
+     * wait on one comparison per base and can be unrolled by the JIT
+     */
+    private static int maxQuality(final byte[] quals) {
+        int m0 = 0, m1 = 0, m2 = 0, m3 = 0;
+        final int n = quals.length & ~7;
+        int i = 0;
+        for ( ; i < n; i += 8 ) {
+            m0 = Math.max(m0, Math.max(quals[i], quals[i + 4]));
+            m1 = Math.max(m1, Math.max(quals[i + 1], quals[i + 5]));
+            m2 = Math.max(m2, Math.max(quals[i + 2], quals[i + 6]));
+            m3 = Math.max(m3, Math.max(quals[i + 3], quals[i + 7]));
+        }
+        for ( ; i < quals.length; i++ )
+            m0 = Math.max(m0, quals[i]);
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+    
     private static final int fixQualityIlluminaToPhred = 31;  
     public static SAMRecord fixMisencodedQuals(final SAMRecord read) throws QualityException {
         final byte[] quals = read.getBaseQualities();
-        for ( int i = 0; i < quals.length; i++ ) {
-            quals[i] -= fixQualityIlluminaToPhred;
-            if ( quals[i] < 0 )
-                throw new QualityException(quals[i]);
-        }
+        fixMisencodedQuals(quals);
         read.setBaseQualities(quals);
         return read;
     }
+
+    /*
+     * the sign bits of all fixed qualities are combined and only checked at the end,
+     * the loop body has no branches
+     */
+    private static void fixMisencodedQuals(final byte[] quals) throws QualityException {
+        int invalid = 0;
+        final int n = quals.length & ~7;
+        int i = 0;
+        for ( ; i < n; i += 8 ) {
+            quals[i] -= fixQualityIlluminaToPhred;
+            quals[i + 1] -= fixQualityIlluminaToPhred;
+            quals[i + 2] -= fixQualityIlluminaToPhred;
+            quals[i + 3] -= fixQualityIlluminaToPhred;
+            quals[i + 4] -= fixQualityIlluminaToPhred;
+            quals[i + 5] -= fixQualityIlluminaToPhred;
+            quals[i + 6] -= fixQualityIlluminaToPhred;
+            quals[i + 7] -= fixQualityIlluminaToPhred;
+            invalid |= quals[i] | quals[i + 1] | quals[i + 2] | quals[i + 3]
+                    | quals[i + 4] | quals[i + 5] | quals[i + 6] | quals[i + 7];
+        }
+        for ( ; i < quals.length; i++ ) {
+            quals[i] -= fixQualityIlluminaToPhred;
+            invalid |= quals[i];
+        }
+        if ( invalid < 0 ) {
+            for ( i = 0; i < quals.length; i++ ) 
+                if ( quals[i] < 0 )
+                    throw new QualityException(quals[i]);
+        }
+    }
+
+    /**
+     * transforms the qualities of the first count reads in one pass per read:
+     * the Illumina 1.3+ encoding is fixed if fix is true and the qualities
+     * are binned if bin is true
+     */
+    public static void transformQualities(final SAMRecord[] reads, final int count, final boolean fix, final boolean bin) throws QualityException {
+        for ( int r = 0; r < count; r++ ) {
+            final byte[] quals = reads[r].getBaseQualities();
+            if ( fix ) 
+                fixMisencodedQuals(quals);
+            if ( bin ) 
+                binQualities(quals);
+            reads[r].setBaseQualities(quals);
+        }
+    }
+    
+    /*
+     * Illumina 8-level binning, qualities above the Sanger range are left unchanged
+     */
+    private static final byte[] QUALITY_BINS = new byte[REASONABLE_SANGER_THRESHOLD + 1];
+    static {
+        for (int q = 0; q <= REASONABLE_SANGER_THRESHOLD; q++) {
+            if (q < 2) QUALITY_BINS[q] = (byte) q;
+            else if (q < 10) QUALITY_BINS[q] = 6;
+            else if (q < 20) QUALITY_BINS[q] = 15;
+            else if (q < 25) QUALITY_BINS[q] = 22;
+            else if (q < 30) QUALITY_BINS[q] = 27;
+            else if (q < 35) QUALITY_BINS[q] = 33;
+            else if (q < 40) QUALITY_BINS[q] = 37;
+            else QUALITY_BINS[q] = 40;
+        }
+    }
+    public static boolean binQualities(final byte[] quals) {
+        // a quality is out of range if it or the threshold minus it is negative
+        int outOfRange = 0;
+        final int n = quals.length & ~3;
+        int i = 0;
+        for ( ; i < n; i += 4 ) {
+            outOfRange |= quals[i] | (REASONABLE_SANGER_THRESHOLD - quals[i])
+                    | quals[i + 1] | (REASONABLE_SANGER_THRESHOLD - quals[i + 1])
+                    | quals[i + 2] | (REASONABLE_SANGER_THRESHOLD - quals[i + 2])
+                    | quals[i + 3] | (REASONABLE_SANGER_THRESHOLD - quals[i + 3]);
+        }
+        for ( ; i < quals.length; i++ )
+            outOfRange |= quals[i] | (REASONABLE_SANGER_THRESHOLD - quals[i]);
+        if ( outOfRange < 0 )
+            return false;
+        for ( i = 0; i < n; i += 4 ) {
+            quals[i] = QUALITY_BINS[quals[i]];
+            quals[i + 1] = QUALITY_BINS[quals[i + 1]];
+            quals[i + 2] = QUALITY_BINS[quals[i + 2]];
+            quals[i + 3] = QUALITY_BINS[quals[i + 3]];
+        }
+        for ( ; i < quals.length; i++ ) 
+            quals[i] = QUALITY_BINS[quals[i]];
+        return true;
+    }
 }
@@ -0,0 +1,668 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Computes an approximation of the recalibration table of BaseRecalibrator 
+ * from the reads while they are written, so the BAM file does not have to be 
+ * read again. The standard covariates (read group, quality score, context and 
+ * cycle) are counted with the default arguments of BaseRecalibrator: reads are 
+ * filtered and clipped (soft clips and adaptor) the same way, bases at known 
+ * sites, bases that are not A, C, G or T and bases with a quality below 6 are 
+ * skipped. No BAQ is computed: every error counts as a full error instead of 
+ * being spread over its BAQ block and reads that can't be BAQ'ed are not 
+ * skipped, so the empirical qualities differ from those of BaseRecalibrator, 
+ * mostly near indels. The mismatches are found with the reference, so the
+ * reads have to be final: duplicates marked and not realigned afterwards.
+ * The table is written as a GATKReport that PrintReads reads with -BQSR.
+ *
+ * @author ddecap
+ */
+public class StreamingRecalibrator {
+    protected static final int EVENTS = 3; // M, I and D
+    protected static final String[] EVENT_NAMES = {"M", "I", "D"};
+    protected static final int MISMATCHES_CONTEXT_SIZE = 2;
+    protected static final int INDELS_CONTEXT_SIZE = 3;
+    protected static final byte INDEL_DEFAULT_QUALITY = 45;
+    protected static final int MAXIMUM_CYCLE_VALUE = 500;
+    protected static final int CUSHION_FOR_INDELS = 4;
+    protected static final byte LOW_QUAL_TAIL = 2;
+    protected static final int MIN_USABLE_Q_SCORE = 6;
+    protected static final int MAX_QUAL = 93;
+    protected static final int MAX_REASONABLE_Q_SCORE = 60;
+    protected static final int MAX_GATK_USABLE_Q_SCORE = 40;
+    protected static final long MAX_NUMBER_OF_OBSERVATIONS = Integer.MAX_VALUE - 1;
+    protected static final int REFERENCE_WINDOW = 1024 * 1024;
+    protected static final String[][] ARGUMENTS = {
+        {"binary_tag_name", "null"},
+        {"covariate", "ReadGroupCovariate,QualityScoreCovariate,ContextCovariate,CycleCovariate"},
+        {"default_platform", "null"},
+        {"deletions_default_quality", "" + INDEL_DEFAULT_QUALITY},
+        {"force_platform", "null"},
+        {"indels_context_size", "" + INDELS_CONTEXT_SIZE},
+        {"insertions_default_quality", "" + INDEL_DEFAULT_QUALITY},
+        {"low_quality_tail", "" + LOW_QUAL_TAIL},
+        {"maximum_cycle_value", "" + MAXIMUM_CYCLE_VALUE},
+        {"mismatches_context_size", "" + MISMATCHES_CONTEXT_SIZE},
+        {"mismatches_default_quality", "-1"},
+        {"no_standard_covs", "false"},
+        {"plot_pdf_file", "null"},
+        {"quantizing_levels", "16"},
+        {"recalibration_report", "null"},
+        {"run_without_dbsnp", "false"},
+        {"solid_nocall_strategy", "THROW_EXCEPTION"},
+        {"solid_recal_mode", "SET_Q_ZERO"}
+    };
+    // gaussian prior on the difference between the empirical and the reported quality
+    protected static final double[] LOG10_PRIOR = new double[MAX_GATK_USABLE_Q_SCORE + 1];
+    static {
+        for (int i = 0; i <= MAX_GATK_USABLE_Q_SCORE; i++) {
+            double prior = Math.log10(0.9 * Math.exp(-(i * i) / (2 * 0.5 * 0.5)));
+            LOG10_PRIOR[i] = Double.isInfinite(prior) ? -Double.MAX_VALUE : prior;
+        }
+    }
+
+    protected SAMFileHeader header;
+    protected IndexedFastaSequenceFile reference;
+    protected HashMap<String, KnownSites> sites;
+    protected TreeMap<String, ReadGroupTable> tables;
+    protected HashMap<String, String> readGroupValues;
+    protected String refContig = null;
+    protected int refStart;
+    protected byte[] refBases;
+    protected long reads = 0;
+    protected long usedReads = 0;
+
+    /*
+     * observations and errors of one read group, rows of the context and cycle
+     * tables are only allocated for the qualities that are used
+     */
+    protected static class ReadGroupTable {
+        protected long[][] qualObservations = new long[EVENTS][MAX_QUAL + 1];
+        protected double[][] qualErrors = new double[EVENTS][MAX_QUAL + 1];
+        protected long[][][] contextObservations = new long[EVENTS][MAX_QUAL + 1][];
+        protected double[][][] contextErrors = new double[EVENTS][MAX_QUAL + 1][];
+        protected long[][][] cycleObservations = new long[EVENTS][MAX_QUAL + 1][];
+        protected double[][][] cycleErrors = new double[EVENTS][MAX_QUAL + 1][];
+
+        protected void add(int event, int qual, int context, int cycle, int error) {
+            qualObservations[event][qual]++;
+            qualErrors[event][qual] += error;
+            if(context >= 0) {
+                if(contextObservations[event][qual] == null) {
+                    int size = 1 << (2 * (event == 0 ? MISMATCHES_CONTEXT_SIZE : INDELS_CONTEXT_SIZE));
+                    contextObservations[event][qual] = new long[size];
+                    contextErrors[event][qual] = new double[size];
+                }
+                contextObservations[event][qual][context]++;
+                contextErrors[event][qual][context] += error;
+            }
+            if(cycle != Integer.MIN_VALUE) {
+                if(cycleObservations[event][qual] == null) {
+                    cycleObservations[event][qual] = new long[2 * MAXIMUM_CYCLE_VALUE + 1];
+                    cycleErrors[event][qual] = new double[2 * MAXIMUM_CYCLE_VALUE + 1];
+                }
+                cycleObservations[event][qual][cycle + MAXIMUM_CYCLE_VALUE]++;
+                cycleErrors[event][qual][cycle + MAXIMUM_CYCLE_VALUE] += error;
+            }
+        }
+    }
+
+    /*
+     * known sites of one contig sorted on start, with the largest end up to every site
+     */
+    protected static class KnownSites {
+        protected int[] starts = new int[1024];
+        protected int[] ends = new int[1024];
+        protected int[] maxEnds;
+        protected int count = 0;
+
+        protected void add(int start, int end) {
+            if(count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        protected void sort() {
+            long[] sites = new long[count];
+            for(int i = 0; i < count; i++)
+                sites[i] = ((long)starts[i] << 32) | ends[i];
+            Arrays.sort(sites);
+            maxEnds = new int[count];
+            for(int i = 0; i < count; i++) {
+                starts[i] = (int)(sites[i] >>> 32);
+                ends[i] = (int)sites[i];
+                maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+            }
+        }
+
+        /*
+         * marks the positions from start to end that are covered by a site
+         */
+        protected void mark(int start, int end, boolean[] covered) {
+            // last site that starts before the end
+            int low = 0, high = count;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(starts[mid] <= end)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for(int i = low - 1; i >= 0 && maxEnds[i] >= start; i--) {
+                if(ends[i] >= start) {
+                    int from = Math.max(start, starts[i]);
+                    int to = Math.min(end, ends[i]);
+                    for(int pos = from; pos <= to; pos++)
+                        covered[pos - start] = true;
+                }
+            }
+        }
+    }
+
+    public StreamingRecalibrator(SAMFileHeader header, String reference, String[] knownSites) throws IOException {
+        this.header = header;
+        this.reference = new IndexedFastaSequenceFile(new File(reference));
+        tables = new TreeMap<>();
+        readGroupValues = new HashMap<>();
+        sites = new HashMap<>();
+        for (String file : knownSites)
+            readKnownSites(file);
+        for (KnownSites s : sites.values())
+            s.sort();
+    }
+
+    /*
+     * a site covers the bases of its reference allele
+     */
+    protected void readKnownSites(String file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while(line != null) {
+                if(!line.isEmpty() && !line.startsWith("#")) {
+                    String[] values = line.split("\t", 5);
+                    KnownSites s = sites.get(values[0]);
+                    if(s == null) {
+                        s = new KnownSites();
+                        sites.put(values[0], s);
+                    }
+                    int pos = Integer.parseInt(values[1]);
+                    s.add(pos, pos + values[3].length() - 1);
+                }
+                line = reader.readLine();
+            }
+        }
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getUsedReads() {
+        return usedReads;
+    }
+
+    /*
+     * the reads BaseRecalibrator filters out
+     */
+    protected boolean isFiltered(SAMRecord read) {
+        return read.getReadUnmappedFlag() || read.getNotPrimaryAlignmentFlag()
+                || read.getDuplicateReadFlag() || read.getReadFailsVendorQualityCheckFlag()
+                || read.getMappingQuality() == 0 || read.getMappingQuality() == 255
+                || read.getReadLength() == 0 || read.getBaseQualities().length != read.getReadLength();
+    }
+
+    protected String getReadGroupValue(SAMRecord read) {
+        Object id = read.getAttribute(SAMTag.RG.name());
+        if(id == null)
+            return null;
+        String value = readGroupValues.get(id.toString());
+        if(value == null) {
+            SAMReadGroupRecord rg = header.getReadGroup(id.toString());
+            if(rg == null)
+                return null;
+            value = rg.getPlatformUnit() == null ? rg.getId() : rg.getPlatformUnit();
+            readGroupValues.put(id.toString(), value);
+        }
+        return value;
+    }
+
+    public void add(SAMRecord read) {
+        reads++;
+        if(isFiltered(read))
+            return;
+        String readGroup = getReadGroupValue(read);
+        if(readGroup == null)
+            return;
+        byte[] bases = read.getReadBases();
+        byte[] quals = read.getBaseQualities();
+        boolean negative = read.getReadNegativeStrandFlag();
+        List<CigarElement> cigar = read.getCigar().getCigarElements();
+
+        // clip the soft clipped bases and the adaptor
+        int first = 0, last = bases.length;
+        for(int i = 0; i < cigar.size() && isClip(cigar.get(i)); i++)
+            first += cigar.get(i).getOperator() == CigarOperator.S ? cigar.get(i).getLength() : 0;
+        for(int i = cigar.size() - 1; i >= 0 && isClip(cigar.get(i)); i--)
+            last -= cigar.get(i).getOperator() == CigarOperator.S ? cigar.get(i).getLength() : 0;
+        int boundary = getAdaptorBoundary(read);
+        if(boundary != Integer.MIN_VALUE && boundary >= read.getAlignmentStart() && boundary <= read.getAlignmentEnd()) {
+            if(negative)
+                first = Math.max(first, getReadOffset(cigar, read.getAlignmentStart(), boundary + 1));
+            else
+                last = Math.min(last, getReadOffset(cigar, read.getAlignmentStart(), boundary));
+        }
+        int length = last - first;
+        if(length <= 0)
+            return;
+        usedReads++;
+
+        // errors and known sites of every base
+        int refStartPos = read.getAlignmentStart();
+        int refEndPos = read.getAlignmentEnd();
+        boolean[] covered = new boolean[refEndPos - refStartPos + 2];
+        KnownSites contigSites = sites.get(read.getReferenceName());
+        if(contigSites != null)
+            contigSites.mark(refStartPos, refEndPos + 1, covered);
+        byte[] ref = getReference(read.getReferenceName(), refStartPos, refEndPos);
+        int refOffset = refStartPos - refStart;
+        int[] snp = new int[length];
+        int[] insertion = new int[length];
+        int[] deletion = new int[length];
+        boolean[] skip = new boolean[length];
+        int readPos = 0, refPos = refStartPos;
+        for (CigarElement e : cigar) {
+            int len = e.getLength();
+            switch (e.getOperator()) {
+                case M: case EQ: case X:
+                    for(int j = 0; j < len; j++) {
+                        int o = readPos + j - first;
+                        if(o >= 0 && o < length) {
+                            int r = refPos + j - refStartPos;
+                            if(r + refOffset >= ref.length || baseIndex(bases[readPos + j]) != baseIndex(ref[r + refOffset]))
+                                snp[o] = 1;
+                            skip[o] = covered[r];
+                        }
+                    }
+                    readPos += len;
+                    refPos += len;
+                    break;
+                case I:
+                    if(!negative)
+                        mark(insertion, readPos - 1 - first);
+                    // bases inside a known indel
+                    if(refPos > refStartPos && covered[refPos - refStartPos - 1] && covered[refPos - refStartPos]) {
+                        for(int j = 0; j < len; j++)
+                            if(readPos + j - first >= 0 && readPos + j - first < length)
+                                skip[readPos + j - first] = true;
+                    }
+                    readPos += len;
+                    if(negative)
+                        mark(insertion, readPos - first);
+                    break;
+                case D:
+                    mark(deletion, (negative ? readPos : readPos - 1) - first);
+                    refPos += len;
+                    break;
+                case S:
+                    readPos += len;
+                    break;
+                case N:
+                    refPos += len;
+                    break;
+                default:
+                    break;
+            }
+        }
+        for(int o = 0; o < length; o++)
+            skip[o] = skip[o] || baseIndex(bases[first + o]) < 0 || quals[first + o] < MIN_USABLE_Q_SCORE;
+
+        // covariates
+        byte[] insertionQuals = getIndelQuals(read, "BI");
+        byte[] deletionQuals = getIndelQuals(read, "BD");
+        int[] mismatchContext = new int[length];
+        int[] indelContext = new int[length];
+        getContexts(bases, quals, first, length, negative, mismatchContext, indelContext);
+        int readOrderFactor = read.getReadPairedFlag() && read.getSecondOfPairFlag() ? -1 : 1;
+        int increment = negative ? -readOrderFactor : readOrderFactor;
+        int cycle = negative ? length * readOrderFactor : readOrderFactor;
+        int[] cycles = new int[length];
+        for(int i = 0; i < length; i++) {
+            cycles[i] = Math.abs(cycle) > MAXIMUM_CYCLE_VALUE ? Integer.MIN_VALUE : cycle;
+            cycle += increment;
+        }
+
+        ReadGroupTable table = tables.get(readGroup);
+        if(table == null) {
+            table = new ReadGroupTable();
+            tables.put(readGroup, table);
+        }
+        for(int o = 0; o < length; o++) {
+            if(skip[o])
+                continue;
+            boolean indelCycle = o >= CUSHION_FOR_INDELS && o <= length - CUSHION_FOR_INDELS - 1;
+            int indelCycleKey = indelCycle ? cycles[o] : Integer.MIN_VALUE;
+            table.add(0, Math.min(MAX_QUAL, quals[first + o]), mismatchContext[o], cycles[o], snp[o]);
+            table.add(1, insertionQuals == null ? INDEL_DEFAULT_QUALITY : Math.min(MAX_QUAL, insertionQuals[first + o]),
+                    indelContext[o], indelCycleKey, insertion[o]);
+            table.add(2, deletionQuals == null ? INDEL_DEFAULT_QUALITY : Math.min(MAX_QUAL, deletionQuals[first + o]),
+                    indelContext[o], indelCycleKey, deletion[o]);
+        }
+    }
+
+    protected static boolean isClip(CigarElement e) {
+        return e.getOperator() == CigarOperator.S || e.getOperator() == CigarOperator.H;
+    }
+
+    protected static void mark(int[] events, int index) {
+        if(index >= 0 && index < events.length)
+            events[index] = 1;
+    }
+
+    /*
+     * first reference position of the adaptor, as in GATK
+     */
+    protected static int getAdaptorBoundary(SAMRecord read) {
+        int insertSize = read.getInferredInsertSize();
+        if(insertSize == 0 || !read.getReadPairedFlag() || read.getReadUnmappedFlag() || read.getMateUnmappedFlag()
+                || read.getReadNegativeStrandFlag() == read.getMateNegativeStrandFlag())
+            return Integer.MIN_VALUE;
+        if(read.getReadNegativeStrandFlag()) {
+            if(read.getAlignmentEnd() <= read.getMateAlignmentStart())
+                return Integer.MIN_VALUE;
+            return read.getMateAlignmentStart() - 1;
+        } else {
+            if(read.getAlignmentStart() > read.getMateAlignmentStart() + insertSize)
+                return Integer.MIN_VALUE;
+            return read.getAlignmentStart() + Math.abs(insertSize) + 1;
+        }
+    }
+
+    /*
+     * offset in the read of the first aligned base at or after this reference position
+     */
+    protected static int getReadOffset(List<CigarElement> cigar, int alignmentStart, int position) {
+        int readPos = 0, refPos = alignmentStart;
+        for (CigarElement e : cigar) {
+            int len = e.getLength();
+            if(e.getOperator().consumesReferenceBases() && refPos + len > position)
+                return readPos + (e.getOperator().consumesReadBases() ? Math.max(0, position - refPos) : 0);
+            if(e.getOperator().consumesReadBases())
+                readPos += len;
+            if(e.getOperator().consumesReferenceBases())
+                refPos += len;
+        }
+        return readPos;
+    }
+
+    protected static byte[] getIndelQuals(SAMRecord read, String tag) {
+        String value = read.getStringAttribute(tag);
+        if(value == null)
+            return null;
+        byte[] quals = new byte[value.length()];
+        for(int i = 0; i < quals.length; i++)
+            quals[i] = (byte)(value.charAt(i) - 33);
+        return quals;
+    }
+
+    protected static int baseIndex(byte base) {
+        switch (base) {
+            case 'A': case 'a': return 0;
+            case 'C': case 'c': return 1;
+            case 'G': case 'g': return 2;
+            case 'T': case 't': return 3;
+            default: return -1;
+        }
+    }
+
+    /*
+     * context keys of the bases in the direction of sequencing, the low quality
+     * tails are not used as context
+     */
+    protected static void getContexts(byte[] bases, byte[] quals, int first, int length, boolean negative, int[] mismatch, int[] indel) {
+        int[] index = new int[length];
+        int left = 0, right = length - 1;
+        while(right >= 0 && quals[first + right] <= LOW_QUAL_TAIL)
+            right--;
+        while(left < length && quals[first + left] <= LOW_QUAL_TAIL)
+            left++;
+        for(int i = 0; i < length; i++) {
+            int b = i < left || i > right ? -1 : baseIndex(bases[first + i]);
+            if(negative)
+                index[length - 1 - i] = b < 0 ? -1 : 3 - b;
+            else
+                index[i] = b;
+        }
+        for(int i = 0; i < length; i++) {
+            int offset = negative ? length - 1 - i : i;
+            mismatch[offset] = getContext(index, i, MISMATCHES_CONTEXT_SIZE);
+            indel[offset] = getContext(index, i, INDELS_CONTEXT_SIZE);
+        }
+    }
+
+    protected static int getContext(int[] index, int i, int size) {
+        if(i < size - 1)
+            return -1;
+        int key = 0;
+        for(int j = i - size + 1; j <= i; j++) {
+            if(index[j] < 0)
+                return -1;
+            key = (key << 2) | index[j];
+        }
+        return key;
+    }
+
+    protected static String contextToString(int key, int size) {
+        char[] bases = new char[size];
+        for(int i = size - 1; i >= 0; i--) {
+            bases[i] = "ACGT".charAt(key & 3);
+            key >>= 2;
+        }
+        return new String(bases);
+    }
+
+    /*
+     * the reference is read in windows, the reads are sorted so most reads are in the current window
+     */
+    protected byte[] getReference(String contig, int start, int end) {
+        if(!contig.equals(refContig) || start < refStart || end >= refStart + refBases.length) {
+            SAMSequenceRecord seq = reference.getSequenceDictionary().getSequence(contig);
+            int stop = Math.min(seq.getSequenceLength(), Math.max(end, start + REFERENCE_WINDOW - 1));
+            refBases = reference.getSubsequenceAt(contig, start, stop).getBases();
+            refContig = contig;
+            refStart = start;
+        }
+        return refBases;
+    }
+
+    /*
+     * bayesian estimate of the empirical quality as in the RecalDatum of GATK,
+     * with one error and one non-error observation added as smoothing
+     */
+    protected static double getEmpiricalQuality(long observations, double errors, double reported) {
+        long n = observations + 2;
+        long k = (long)(errors + 0.5) + 1;
+        if(n > MAX_NUMBER_OF_OBSERVATIONS) {
+            k = Math.round((double)k * MAX_NUMBER_OF_OBSERVATIONS / n);
+            n = MAX_NUMBER_OF_OBSERVATIONS;
+        }
+        double[] log10Posteriors = new double[MAX_REASONABLE_Q_SCORE + 1];
+        double max = Double.NEGATIVE_INFINITY;
+        for(int q = 0; q <= MAX_REASONABLE_Q_SCORE; q++) {
+            double log10Error = -q / 10.0;
+            double likelihood = k * log10Error + (n - k) * Math.log10(1 - Math.pow(10, log10Error));
+            if(Double.isInfinite(likelihood) || Double.isNaN(likelihood))
+                likelihood = -Double.MAX_VALUE;
+            log10Posteriors[q] = LOG10_PRIOR[Math.min(Math.abs((int)(q - reported)), MAX_GATK_USABLE_Q_SCORE)] + likelihood;
+            max = Math.max(max, log10Posteriors[q]);
+        }
+        int best = 0;
+        double bestPosterior = -1;
+        for(int q = 0; q <= MAX_REASONABLE_Q_SCORE; q++) {
+            double posterior = Math.pow(10, log10Posteriors[q] - max);
+            if(posterior > bestPosterior) {
+                best = q;
+                bestPosterior = posterior;
+            }
+        }
+        return Math.min(best, MAX_QUAL);
+    }
+
+    /**
+     * writes the recalibration table in the GATKReport format of BaseRecalibrator
+     */
+    public void write(String file) throws IOException {
+        long[] histogram = new long[MAX_QUAL + 1];
+        List<String[]> readGroupRows = new ArrayList<>();
+        List<String[]> qualRows = new ArrayList<>();
+        List<String[]> covariateRows = new ArrayList<>();
+        for (Entry<String, ReadGroupTable> e : tables.entrySet()) {
+            String rg = e.getKey();
+            ReadGroupTable t = e.getValue();
+            for(int event = 0; event < EVENTS; event++) {
+                long observations = 0;
+                double errors = 0, expectedErrors = 0;
+                for(int q = 0; q <= MAX_QUAL; q++) {
+                    long n = t.qualObservations[event][q];
+                    if(n == 0)
+                        continue;
+                    double empirical = getEmpiricalQuality(n, t.qualErrors[event][q], q);
+                    histogram[(int)Math.round(empirical)] += n;
+                    qualRows.add(new String[]{rg, "" + q, EVENT_NAMES[event], format(empirical, 4), "" + n, format(t.qualErrors[event][q], 2)});
+                    observations += n;
+                    errors += t.qualErrors[event][q];
+                    expectedErrors += n * Math.pow(10, -q / 10.0);
+                }
+                if(observations > 0) {
+                    double reported = -10 * Math.log10(expectedErrors / observations);
+                    readGroupRows.add(new String[]{rg, EVENT_NAMES[event], format(getEmpiricalQuality(observations, errors, reported), 4),
+                        format(reported, 4), "" + observations, format(errors, 2)});
+                }
+            }
+            for(int q = 0; q <= MAX_QUAL; q++) {
+                for(int event = 0; event < EVENTS; event++) {
+                    long[] n = t.contextObservations[event][q];
+                    if(n == null)
+                        continue;
+                    int size = event == 0 ? MISMATCHES_CONTEXT_SIZE : INDELS_CONTEXT_SIZE;
+                    for(int key = 0; key < n.length; key++)
+                        if(n[key] > 0)
+                            covariateRows.add(new String[]{rg, "" + q, contextToString(key, size), "Context", EVENT_NAMES[event],
+                                format(getEmpiricalQuality(n[key], t.contextErrors[event][q][key], q), 4), "" + n[key], format(t.contextErrors[event][q][key], 2)});
+                }
+                for(int event = 0; event < EVENTS; event++) {
+                    long[] n = t.cycleObservations[event][q];
+                    if(n == null)
+                        continue;
+                    for(int key = 0; key < n.length; key++)
+                        if(n[key] > 0)
+                            covariateRows.add(new String[]{rg, "" + q, "" + (key - MAXIMUM_CYCLE_VALUE), "Cycle", EVENT_NAMES[event],
+                                format(getEmpiricalQuality(n[key], t.cycleErrors[event][q][key], q), 4), "" + n[key], format(t.cycleErrors[event][q][key], 2)});
+                }
+            }
+        }
+        // PrintReads does not quantize by default, the map is written without quantization
+        List<String[]> quantizedRows = new ArrayList<>();
+        for(int q = 0; q <= MAX_QUAL; q++)
+            quantizedRows.add(new String[]{"" + q, "" + histogram[q], "" + q});
+
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("#:GATKReport.v1.1:5");
+            writeTable(out, "Arguments", "Recalibration argument collection values used in this run",
+                    new String[]{"Argument", "Value"}, new String[]{"%s", "%s"}, Arrays.asList(ARGUMENTS));
+            writeTable(out, "Quantized", "Quality quantization map",
+                    new String[]{"QualityScore", "Count", "QuantizedScore"}, new String[]{"%d", "%d", "%d"}, quantizedRows);
+            writeTable(out, "RecalTable0", "",
+                    new String[]{"ReadGroup", "EventType", "EmpiricalQuality", "EstimatedQReported", "Observations", "Errors"},
+                    new String[]{"%s", "%s", "%.4f", "%.4f", "%d", "%.2f"}, readGroupRows);
+            writeTable(out, "RecalTable1", "",
+                    new String[]{"ReadGroup", "QualityScore", "EventType", "EmpiricalQuality", "Observations", "Errors"},
+                    new String[]{"%s", "%d", "%s", "%.4f", "%d", "%.2f"}, qualRows);
+            writeTable(out, "RecalTable2", "",
+                    new String[]{"ReadGroup", "QualityScore", "CovariateValue", "CovariateName", "EventType", "EmpiricalQuality", "Observations", "Errors"},
+                    new String[]{"%s", "%d", "%s", "%s", "%s", "%.4f", "%d", "%.2f"}, covariateRows);
+        }
+    }
+
+    protected static String format(double value, int decimals) {
+        return String.format(Locale.US, "%." + decimals + "f", value);
+    }
+
+    /*
+     * GATK reads the columns of a table at the positions of the column names
+     */
+    protected static void writeTable(PrintWriter out, String name, String description, String[] columns, String[] formats, List<String[]> rows) {
+        int[] widths = new int[columns.length];
+        for(int i = 0; i < columns.length; i++)
+            widths[i] = columns[i].length();
+        for (String[] row : rows)
+            for(int i = 0; i < columns.length; i++)
+                widths[i] = Math.max(widths[i], row[i].length());
+        StringBuilder tableHeader = new StringBuilder("#:GATKTable:" + columns.length + ":" + rows.size());
+        for (String f : formats)
+            tableHeader.append(":").append(f);
+        out.println(tableHeader.append(":;").toString());
+        out.println("#:GATKTable:" + name + ":" + description);
+        writeRow(out, columns, widths);
+        for (String[] row : rows)
+            writeRow(out, row, widths);
+        out.println();
+    }
+
+    protected static void writeRow(PrintWriter out, String[] values, int[] widths) {
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0)
+                line.append("  ");
+            line.append(values[i]);
+            if(i < values.length - 1)
+                for(int j = values[i].length(); j < widths[i]; j++)
+                    line.append(' ');
+        }
+        out.println(line.toString());
+    }
+
+    public void close() throws IOException {
+        reference.close();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes bytes to a stream on a separate thread. Data is copied in a small
+ * pool of large buffers, full buffers are written by the writer thread,
+ * the caller only blocks when all buffers are waiting to be written.
+ *
+ * @author ddecap
+ */
+public class AsyncStreamWriter extends Thread {
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFERS = 8;
+    private static final byte NEWLINE = '\n';
+
+    protected OutputStream out;
+    protected ArrayBlockingQueue<Buffer> free;
+    protected ArrayBlockingQueue<Buffer> full;
+    protected Buffer current;
+    protected volatile IOException error = null;
+    protected boolean closed = false;
+    protected long bytes = 0;
+
+    protected static class Buffer {
+        protected byte[] data;
+        protected int length;
+        protected Buffer(int size) {
+            data = new byte[size];
+            length = 0;
+        }
+    }
+    private static final Buffer END = new Buffer(0);
+
+    public AsyncStreamWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+    public AsyncStreamWriter(OutputStream out, int bufferSize, int buffers) {
+        this.out = out;
+        free = new ArrayBlockingQueue<>(buffers);
+        full = new ArrayBlockingQueue<>(buffers + 1);
+        for(int i = 0; i < buffers - 1; i++)
+            free.add(new Buffer(bufferSize));
+        current = new Buffer(bufferSize);
+        setDaemon(true);
+        start();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+        while(len > 0) {
+            int n = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, n);
+            current.length += n;
+            off += n;
+            len -= n;
+            if(current.length == current.data.length)
+                handOver();
+        }
+    }
+
+    public void writeLine(byte[] b, int off, int len) throws IOException {
+        write(b, off, len);
+        if(current.length == current.data.length)
+            handOver();
+        current.data[current.length++] = NEWLINE;
+    }
+
+    /*
+     * passes the data written so far to the writer thread
+     */
+    public void flush() throws IOException {
+        checkError();
+        if(current.length > 0)
+            handOver();
+    }
+
+    /*
+     * writes all remaining data and closes the stream
+     */
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        flush();
+        try {
+            full.put(END);
+            join();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+        checkError();
+    }
+
+    public long getBytesWritten() {
+        return bytes;
+    }
+
+    private void handOver() throws IOException {
+        try {
+            full.put(current);
+            current = null;
+            while(current == null) {
+                checkError();
+                current = free.poll(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if(error != null)
+            throw new IOException("Error when writing to stream", error);
+    }
+
+    @Override
+    public void run() {
+        try {
+            Buffer b = full.take();
+            while(b != END) {
+                if(error == null) {
+                    try {
+                        out.write(b.data, 0, b.length);
+                        bytes += b.length;
+                    } catch (IOException ex) {
+                        Logger.EXCEPTION(ex);
+                        error = ex;
+                    }
+                }
+                b.length = 0;
+                free.put(b);
+                b = full.take();
+            }
+            out.flush();
+            out.close();
+        } catch (IOException ex) {
+            if(error == null) error = ex;
+        } catch (InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+            error = new IOException(ex);
+        }
+    }
+}
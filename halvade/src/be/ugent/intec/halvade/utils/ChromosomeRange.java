@@ -65,6 +65,25 @@ public class ChromosomeRange {
             list.add(new Range(chr, start, stop));
     }
 
+    /*
+     * keeps only the part between coreStart and coreStop of the ranges on chr 
+     * that overlap start to stop, all other ranges are kept as is
+     */
+    public void clip(String chr, int start, int stop, int coreStart, int coreStop) {
+        ArrayList<Range> clipped = new ArrayList<>();
+        for(Range r : list) {
+            if(!r.sequenceName.equals(chr) || r.alignmentEnd < start || r.alignmentStart > stop)
+                clipped.add(r);
+            else if(r.alignmentEnd >= coreStart && r.alignmentStart <= coreStop)
+                clipped.add(new Range(chr, Math.max(coreStart, r.alignmentStart), Math.min(coreStop, r.alignmentEnd)));
+        }
+        list = clipped;
+    }
+    
+    public boolean isEmpty() {
+        return list.isEmpty();
+    }
+
     @Override
     public String toString() {
         return list.size() + "regions_" + list.get(0).sequenceName + "-" + list.get(0).alignmentStart;
@@ -28,17 +28,20 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMUtils;
 import java.io.File;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Comparator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.PriorityQueue;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -77,6 +80,9 @@ public final class ChromosomeSplitter {
         protected int end;
         protected int key;
         protected int reads;
+        // bounds without the overlap if a hot region was split, -1 otherwise
+        protected int coreStart = -1;
+        protected int coreEnd = -1;
 
         private BedRegion(String contig, String start, String end, String key) {
             this.contig = contig;
@@ -114,9 +120,31 @@ public final class ChromosomeSplitter {
         }
         
     }
+    protected class BedRegionStartComparator implements Comparator<BedRegion> {
+
+        @Override
+        public int compare(BedRegion o1, BedRegion o2) {
+            return o1.start - o2.start;
+        }
+        
+    }
 //    protected HashMap<String, ArrayList<BedRegion> > regions;
     protected ArrayList<BedRegion> regions;
-    protected HashMap<String, ArrayList<BedRegion> > regionsByChrom;
+    public static final int MAX_KEYS_PER_READ = 8;
+    public static final int HOT_REGION_OVERLAP = 1000;
+    public static final int MATE_MARGIN = 500;
+    // estimated cost of a region in seconds: start of the tools, per read and per base
+    protected static final double TASK_COST = 60.0;
+    protected static final double READ_COST = 1.0e-3;
+    protected static final double BASE_COST = 1.0e-5;
+    protected static final int UNRESOLVED = -1;
+    protected HashMap<String, Integer> contigIndex;
+    protected int[][] regionStarts;
+    protected int[][] regionEnds;
+    protected int[][] regionKeys;
+    protected int[][] regionMaxEnds;
+    protected SAMFileHeader lookupHeader;
+    protected int[] contigByRefIndex;
     protected static final double MIN_THRESHOLD = 1.25;
     protected static final double LT_FACTOR = 5.0;
     protected final int MIN_GENE_SEPARATION = 100000;
@@ -155,99 +183,223 @@ public final class ChromosomeSplitter {
     }
 
     private void GetRegionsPerRegion() {
-        regionsByChrom = new HashMap();
+        HashMap<String, ArrayList<BedRegion> > regionsByChrom = new HashMap();
+        ArrayList<String> contigs = new ArrayList<>();
         for (BedRegion region: regions) {
-            if(!regionsByChrom.containsKey(region.contig)) 
+            if(!regionsByChrom.containsKey(region.contig)) {
                 regionsByChrom.put(region.contig, new ArrayList());
+                contigs.add(region.contig);
+            }
             regionsByChrom.get(region.contig).add(region);
         }
+        // sorted region boundaries per contig for the binary search in getRegions
+        contigIndex = new HashMap<>();
+        regionStarts = new int[contigs.size()][];
+        regionEnds = new int[contigs.size()][];
+        regionKeys = new int[contigs.size()][];
+        regionMaxEnds = new int[contigs.size()][];
+        for(int i = 0; i < contigs.size(); i++) {
+            ArrayList<BedRegion> list = regionsByChrom.get(contigs.get(i));
+            Collections.sort(list, new BedRegionStartComparator());
+            regionStarts[i] = new int[list.size()];
+            regionEnds[i] = new int[list.size()];
+            regionKeys[i] = new int[list.size()];
+            regionMaxEnds[i] = new int[list.size()];
+            for(int j = 0; j < list.size(); j++) {
+                regionStarts[i][j] = list.get(j).start;
+                regionEnds[i][j] = list.get(j).end;
+                regionKeys[i][j] = list.get(j).key;
+                regionMaxEnds[i][j] = j == 0 ? regionEnds[i][j] : Math.max(regionMaxEnds[i][j - 1], regionEnds[i][j]);
+            }
+            contigIndex.put(contigs.get(i), i);
+        }
+        lookupHeader = null;
+        contigByRefIndex = new int[0];
     }
     
-    private Integer[] getKey(String refName, int pos, int pos2) {
-        Integer tmpList[] = {null, null};
-        ArrayList<BedRegion> keyList = null;
-        try {
-            keyList = regionsByChrom.get(refName);
-            int i = 0;
-            int found = 0;
-            while (i < keyList.size() && found <2) {
-                BedRegion tmp = keyList.get(i);
-                if (pos >= tmp.start && pos < tmp.end) {
-                    tmpList[0] = tmp.key;
-                    found++;
-                }
-                if (pos2 >= tmp.start && pos2 < tmp.end) {
-                    tmpList[1] = tmp.key;
-                    found++;
-                }
-                i++;
-            } 
-/*
-// old      
-        for (BedRegion region: regions) {
-            if (refName.equalsIgnoreCase(region.contig) && pos >= region.start && pos < region.end)
-                tmpList[0] = region.key;
-            if (refName.equalsIgnoreCase(region.contig) && pos2 >= region.start && pos2 < region.end)
-                tmpList[1] = region.key;
+    private int getContig(SAMFileHeader header, int refIndex, String refName) {
+        if(header != lookupHeader) {
+            lookupHeader = header;
+            contigByRefIndex = new int[header == null ? 0 : header.getSequenceDictionary().size()];
+            Arrays.fill(contigByRefIndex, UNRESOLVED);
         }
-
-// last correct before
-        Integer tmpList[] = {null, null};
-        int p, p2;
-        if(pos < pos2)  { p = pos; p2 = pos2; }
-        else            { p = pos2; p2 = pos; }
-        ArrayList<BedRegion> keyList =  regions.get(refName);
-        if(keyList == null) return tmpList;
-        int i = 0;
-        while(i < keyList.size() && p > keyList.get(i).end)
-            i++;
-        if(i >= keyList.size()) {
-            return tmpList;
-        } else {
-            if(p >=  keyList.get(i).start)
-                tmpList[0] = keyList.get(i).key;
-            while(i < keyList.size() && p2 > keyList.get(i).end)
-                i++;
-            if(i >= keyList.size())
-                return tmpList;
-            else {
-                if(p2 >=  keyList.get(i).start ) 
-                    tmpList[1] = keyList.get(i).key;
+        if(refIndex >= contigByRefIndex.length)
+            return findContig(refName);
+        if(contigByRefIndex[refIndex] == UNRESOLVED)
+            contigByRefIndex[refIndex] = findContig(refName);
+        return contigByRefIndex[refIndex];
+    }
+    
+    private int findContig(String refName) {
+        Integer contig = contigIndex.get(refName);
+        if(contig == null) {
+            Logger.DEBUG("refname " + refName + " not found");
+            throw new NullPointerException("chromosome " + refName + " not found in reference");
+        }
+        return contig;
+    }
+    
+    /*
+     * binary search for the last region starting at or before pos, 
+     * adds the keys of all regions containing pos that are not yet present,
+     * only split hot regions overlap so the search back stops at once otherwise
+     */
+    private int addKey(int contig, int pos, int[] keys, int count) {
+        int[] starts = regionStarts[contig];
+        int lo = 0, hi = starts.length - 1, idx = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(starts[mid] <= pos) {
+                idx = mid;
+                lo = mid + 1;
+            } else 
+                hi = mid - 1;
+        }
+        for(int j = idx; j >= 0 && regionMaxEnds[contig][j] > pos; j--) {
+            if(pos < regionEnds[contig][j])
+                count = addKey(regionKeys[contig][j], keys, count);
+        }
+        return count;
+    }
+    
+    private int addKey(int key, int[] keys, int count) {
+        for(int i = 0; i < count; i++) 
+            if(keys[i] == key) return count;
+        if(count == keys.length)
+            return count;
+        keys[count] = key;
+        return count + 1;
+    }
+    
+    /**
+     * splits regions with more than factor times the average reads per key in 
+     * regions with the average number of reads, the new regions overlap so 
+     * every read near a boundary is in one region with its neighbours. 
+     * The reducer only calls variants in the core of the region.
+     * Requires the read counts of the regions.
+     */
+    public void splitHotRegions(double factor) {
+        long totalReads = 0;
+        for (BedRegion region : regions)
+            totalReads += region.reads;
+        double avgReads = (double)totalReads / regionCount;
+        ArrayList<BedRegion> split = new ArrayList<>();
+        for (BedRegion region : regions) {
+            if(region.reads <= factor * avgReads || region.end - region.start < 2 * HOT_REGION_OVERLAP) {
+                split.add(region);
+                continue;
+            }
+            int parts = Math.min((int)Math.ceil(region.reads / avgReads), (region.end - region.start) / HOT_REGION_OVERLAP);
+            int size = (region.end - region.start + parts - 1) / parts;
+            Logger.DEBUG("splitting hot region " + region + " in " + parts + " regions");
+            for(int k = 0; k < parts; k++) {
+                int coreStart = region.start + k * size;
+                int coreEnd = Math.min(coreStart + size, region.end);
+                BedRegion sub = new BedRegion(region.contig, Math.max(region.start, coreStart - HOT_REGION_OVERLAP),
+                        Math.min(region.end, coreEnd + HOT_REGION_OVERLAP), k == 0 ? region.key : regionCount++, region.reads / parts);
+                sub.coreStart = coreStart;
+                sub.coreEnd = coreEnd;
+                split.add(sub);
             }
         }
-*/
-            
-        } catch (NullPointerException ex) {
-            if(keyList == null) {
-                Logger.DEBUG("refname " + refName + " not found");
-                throw new NullPointerException("chromosome " + refName + " not found in reference");
+        regions = split;
+        GetRegionsPerRegion();
+    }
+    
+    /**
+     * limits the ranges in the span of every split hot region with this key to 
+     * the core of that region, ranges of other regions with this key are kept
+     */
+    public void clipToCore(int key, ChromosomeRange r) {
+        for (BedRegion region : regions) {
+            if(region.key == key && region.coreStart >= 0)
+                r.clip(region.contig, region.start, region.end - 1, region.coreStart, region.coreEnd - 1);
+        }
+    }
+    
+    /**
+     * writes the keys of all regions this read and its mate belong to in the given buffer
+     * @param keys buffer with room for MAX_KEYS_PER_READ keys
+     * @return the number of keys written
+     */
+    public int getRegions(SAMRecord sam, int read1Ref, int read2Ref, int[] keys) {  
+        int count = 0;
+        if(read1Ref >= 0) {
+            int contig = getContig(sam.getHeader(), read1Ref, sam.getReferenceName());
+            count = addKey(contig, sam.getAlignmentStart(), keys, count);
+            count = addKey(contig, sam.getAlignmentEnd(), keys, count);
+        }
+        if(read2Ref >= 0) {
+            int contig = getContig(sam.getHeader(), read2Ref, sam.getMateReferenceName());
+            int beginpos2 = sam.getMateAlignmentStart();
+            count = addKey(contig, beginpos2, keys, count);
+            count = addKey(contig, beginpos2 + sam.getReadLength(), keys, count); // is approximation, but is best we can currently do!
+        }
+        return count;
+    }
+    
+    /**
+     * writes the keys of the regions of this read and the regions its mate needs it in,
+     * the end of the mate is taken from the MC tag if present. 
+     * With a margin, the read is only sent to the regions of its mate if the mate 
+     * is within margin bp of the read, a negative margin always sends it.
+     * @param keys buffer with room for MAX_KEYS_PER_READ keys
+     * @return the number of keys written
+     */
+    public int getRegions(SAMRecord sam, int read1Ref, int read2Ref, int[] keys, int mateMargin) {  
+        int count = 0;
+        if(read1Ref >= 0) {
+            int contig = getContig(sam.getHeader(), read1Ref, sam.getReferenceName());
+            count = addKey(contig, sam.getAlignmentStart(), keys, count);
+            count = addKey(contig, sam.getAlignmentEnd(), keys, count);
+        }
+        if(read2Ref >= 0) {
+            int mateStart = sam.getMateAlignmentStart();
+            int mateEnd = SAMUtils.hasMateCigar(sam) ? SAMUtils.getMateAlignmentEnd(sam) : mateStart + sam.getReadLength();
+            if(mateMargin < 0 || (read1Ref == read2Ref && 
+                    mateStart <= sam.getAlignmentEnd() + mateMargin && mateEnd >= sam.getAlignmentStart() - mateMargin)) {
+                int contig = getContig(sam.getHeader(), read2Ref, sam.getMateReferenceName());
+                count = addKey(contig, mateStart, keys, count);
+                count = addKey(contig, mateEnd, keys, count);
             }
         }
-        return tmpList;
+        return count;
     }
     
-    public HashSet<Integer> getRegions(SAMRecord sam, int read1Ref, int read2Ref) {  
-        int beginpos1 = sam.getAlignmentStart();
-        int endpos1 = sam.getAlignmentEnd();
-        int beginpos2 = sam.getMateAlignmentStart();
-        int endpos2 =  sam.getMateAlignmentStart() + sam.getReadLength();      // is approximation, but is best we can currently do!
-        HashSet<Integer> keys = new HashSet();
-        if(read1Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getReferenceName(),beginpos1, endpos1));
-        if(read2Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getMateReferenceName(),beginpos2,endpos2));
-        keys.removeAll(Collections.singleton(null));
-        return keys;
+    /**
+     * writes the keys of all regions overlapping start-end on this contig in the given buffer
+     * @return the number of keys written, 0 if the contig has no regions
+     */
+    public int getRegions(String contig, int start, int end, int[] keys) {
+        Integer c = contigIndex.get(contig);
+        if(c == null)
+            return 0;
+        int[] starts = regionStarts[c];
+        int lo = 0, hi = starts.length - 1, idx = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(starts[mid] <= end) {
+                idx = mid;
+                lo = mid + 1;
+            } else 
+                hi = mid - 1;
+        }
+        int count = 0;
+        for(int j = idx; j >= 0 && regionMaxEnds[c][j] > start; j--) {
+            if(start < regionEnds[c][j])
+                count = addKey(regionKeys[c][j], keys, count);
+        }
+        return count;
     }
     
-    public HashSet<Integer> getRegions(SAMRecord sam, int read1Ref) { 
-        int beginpos1 = sam.getAlignmentStart();
-        int endpos1 = sam.getAlignmentEnd();      
-        HashSet<Integer> keys = new HashSet();
-        if(read1Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getReferenceName(),beginpos1,endpos1));
-        keys.removeAll(Collections.singleton(null));
-        return keys;
+    public int getRegions(SAMRecord sam, int read1Ref, int[] keys) { 
+        int count = 0;
+        if(read1Ref >= 0) {
+            int contig = getContig(sam.getHeader(), read1Ref, sam.getReferenceName());
+            count = addKey(contig, sam.getAlignmentStart(), keys, count);
+            count = addKey(contig, sam.getAlignmentEnd(), keys, count);
+        }
+        return count;
     }
     
     
@@ -440,6 +592,10 @@ public final class ChromosomeSplitter {
                     regions.add(new BedRegion(currentContig, currentStart, currentEnd, currentKey));
             }
         }
+        // not every key is counted above, every key needs its own reduce task
+        regionCount = 0;
+        for (BedRegion region : regions)
+            regionCount = Math.max(regionCount, region.key + 1);
         Logger.DEBUG("Total regions: " + regionCount);
             for (BedRegion breg : regions) {
                 Logger.DEBUG("region: " + breg.key + ", " + breg.contig + 
@@ -585,6 +741,93 @@ public final class ChromosomeSplitter {
         Logger.DEBUG("after reordering # reducers: "+ keyCounts.size(),3);
     }
     
+    /*
+     * estimated time to process all regions of every key
+     */
+    protected double[] getKeyCosts() {
+        double[] costs = new double[regionCount];
+        for (BedRegion region : regions) {
+            if(region.key < 0 || region.key >= regionCount || region.end <= region.start)
+                continue;
+            costs[region.key] += region.reads * READ_COST + (region.end - region.start) * BASE_COST;
+        }
+        for(int i = 0; i < regionCount; i++)
+            costs[i] += TASK_COST;
+        return costs;
+    }
+    
+    /**
+     * assigns the keys to the reduce tasks, longest processing time first: 
+     * every key, in order of decreasing cost, goes to the reduce task with the lowest total cost
+     * @return the reduce task of every key
+     */
+    public int[] getPartitionPlan(int partitions) {
+        final double[] costs = getKeyCosts();
+        Integer[] keys = new Integer[regionCount];
+        for(int i = 0; i < regionCount; i++)
+            keys[i] = i;
+        Arrays.sort(keys, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(costs[o2], costs[o1]);
+            }
+        });
+        final double[] loads = new double[partitions];
+        PriorityQueue<Integer> tasks = new PriorityQueue<>(partitions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int c = Double.compare(loads[o1], loads[o2]);
+                return c != 0 ? c : o1 - o2;
+            }
+        });
+        for(int i = 0; i < partitions; i++)
+            tasks.add(i);
+        int[] plan = new int[regionCount];
+        for (Integer key : keys) {
+            int task = tasks.poll();
+            plan[key] = task;
+            loads[task] += costs[key];
+            tasks.add(task);
+        }
+        double max = 0, total = 0;
+        for (double load : loads) {
+            max = Math.max(max, load);
+            total += load;
+        }
+        Logger.DEBUG("partition plan: " + regionCount + " regions in " + partitions + " reduce tasks, estimated cost " 
+                + (int)max + " s for the largest task, " + (int)(total / partitions) + " s on average");
+        return plan;
+    }
+    
+    public void exportPartitionPlan(String filename, Configuration conf, int partitions) throws URISyntaxException, IOException {
+        int[] plan = getPartitionPlan(partitions);
+        FileSystem hdfs = FileSystem.get(new URI(filename), conf);
+        Path file = new Path(filename);
+        if (hdfs.exists(file)) { hdfs.delete(file, true); } 
+        try (DataOutputStream dos = new DataOutputStream(hdfs.create(file))) {
+            dos.writeInt(partitions);
+            dos.writeInt(plan.length);
+            for (int task : plan)
+                dos.writeInt(task);
+        }
+    }
+    
+    /**
+     * reads a partition plan made for this number of reduce tasks
+     * @return the reduce task of every key or null if the plan is for another number of reduce tasks
+     */
+    public static int[] importPartitionPlan(String filename, Configuration conf, int partitions) throws URISyntaxException, IOException {
+        FileSystem hdfs = FileSystem.get(new URI(filename), conf);
+        try (DataInputStream dis = new DataInputStream(hdfs.open(new Path(filename)))) {
+            if(dis.readInt() != partitions)
+                return null;
+            int[] plan = new int[dis.readInt()];
+            for(int i = 0; i < plan.length; i++)
+                plan[i] = dis.readInt();
+            return plan;
+        }
+    }
+    
     public void exportSplitter(String filename, Configuration conf) throws URISyntaxException, IOException {
         DataOutputStream dos = null;
         FileSystem hdfs = null;
@@ -600,6 +843,8 @@ public final class ChromosomeSplitter {
                 dos.writeInt(region.start);
                 dos.writeInt(region.end);
                 dos.writeInt(region.key);
+                dos.writeInt(region.coreStart);
+                dos.writeInt(region.coreEnd);
             }
         } finally {
             if(dos != null)
@@ -622,7 +867,11 @@ public final class ChromosomeSplitter {
                 int start = dis.readInt();
                 int end = dis.readInt();
                 int key = dis.readInt();
-                regions.add(new BedRegion(contig, start, end, key));
+                BedRegion region = new BedRegion(contig, start, end, key);
+                region.coreStart = dis.readInt();
+                region.coreEnd = dis.readInt();
+                regions.add(region);
+                regionCount = Math.max(regionCount, key + 1);
             }
         } finally {
             if(dis != null)
@@ -223,7 +223,21 @@ public class CommandGenerator {
         return StringArray;
     }
     
-    public static String[] SAMToolsView(String bin, String input, String output, int threads, boolean keepDups, String customArgs) {
+    public static String[] SAMToolsStreamToBam(String bin) {
+        ArrayList<String> command = new ArrayList<>();
+        if(bin.endsWith("/")) 
+            command.add(bin + "samtools"); 
+        else
+            command.add(bin + "/samtools");
+        command.add("view");
+        command.add("-Su");
+        command.add("-");
+        Object[] ObjectList = command.toArray();
+        String[] StringArray = Arrays.copyOf(ObjectList,ObjectList.length,String[].class);
+        return StringArray;
+    }
+    
+    public static String[] SAMToolsView(String bin, String input, String output, int threads, boolean keepDups, int level, String customArgs) {
         ArrayList<String> command = new ArrayList<>();
         if(bin.endsWith("/")) 
             command.add(bin + "samtools"); 
@@ -239,6 +253,10 @@ public class CommandGenerator {
             command.add("-F");
             command.add("0x400");
         }
+        if(level >= 0) {
+            command.add("-l");
+            command.add("" + level);
+        }
         command = addToCommand(command, customArgs);
         command.add("-o");
         command.add(output);
@@ -279,6 +297,27 @@ public class CommandGenerator {
         return StringArray;        
     }
     
+    public static String[] bwaShm(String bin, String bwaReferenceIndex, String tmpFile, boolean unload) {
+        ArrayList<String> command = new ArrayList<>();
+        if(bin.endsWith("/")) 
+            command.add(bin + bwaCommand[0]); 
+        else
+            command.add(bin + "/" + bwaCommand[0]);
+        command.add("shm");
+        if(unload)
+            command.add("-d");
+        else {
+            if(tmpFile != null) {
+                command.add("-f");
+                command.add(tmpFile);
+            }
+            command.add(bwaReferenceIndex);
+        }
+        Object[] ObjectList = command.toArray();
+        String[] StringArray = Arrays.copyOf(ObjectList,ObjectList.length,String[].class);
+        return StringArray;        
+    }
+    
     public static String[] featureCounts(String bin,
             String gffFile, 
             String bamFile,
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Number of aligned reads per bin of the genome. The map tasks of the coverage
+ * sample job count the reads they align and write the histogram as a side
+ * output, the driver merges these in a read count file that is used by the
+ * ChromosomeSplitter to make regions with the same number of reads.
+ *
+ * @author ddecap
+ */
+public class CoverageHistogram {
+    public static final int DEFAULT_BIN_SIZE = 100000;
+    public static final String FILE_PREFIX = "coverage-";
+    public static final String FRACTION_FILE = "_fraction";
+
+    protected int binSize;
+    protected HashMap<String, long[]> bins;
+
+    public CoverageHistogram(int binSize) {
+        this.binSize = binSize;
+        bins = new HashMap<>();
+    }
+
+    public void add(SAMRecord sam) {
+        long[] counts = bins.get(sam.getReferenceName());
+        if(counts == null) {
+            SAMSequenceRecord seq = sam.getHeader().getSequence(sam.getReferenceIndex());
+            counts = new long[seq.getSequenceLength() / binSize + 1];
+            bins.put(sam.getReferenceName(), counts);
+        }
+        int bin = sam.getAlignmentStart() / binSize;
+        if(bin < counts.length)
+            counts[bin]++;
+    }
+
+    /*
+     * writes the non empty bins as contig, bin and count
+     */
+    public void write(FileSystem fs, Path file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(fs.create(file, true))) {
+            for (Entry<String, long[]> contig : bins.entrySet()) {
+                long[] counts = contig.getValue();
+                for(int i = 0; i < counts.length; i++)
+                    if(counts[i] > 0)
+                        writer.println(contig.getKey() + "\t" + i + "\t" + counts[i]);
+            }
+        }
+    }
+
+    /*
+     * the fraction of the reads that was sampled, so an existing sample is only reused for the same fraction
+     */
+    public static void writeFraction(FileSystem fs, Path dir, double fraction) throws IOException {
+        try (PrintWriter writer = new PrintWriter(fs.create(new Path(dir, FRACTION_FILE), true))) {
+            writer.println(fraction);
+        }
+    }
+
+    /*
+     * returns -1 if the fraction of this sample is unknown
+     */
+    public static double readFraction(FileSystem fs, Path dir) throws IOException {
+        Path file = new Path(dir, FRACTION_FILE);
+        if(!fs.exists(file))
+            return -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file)))) {
+            String line = reader.readLine();
+            return line == null ? -1 : Double.parseDouble(line.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /*
+     * combines the histograms of all tasks and writes the read counts per bin
+     * in the format of the read count file (contig:start-end<tab>count),
+     * every bin gets one extra read so no region is empty
+     */
+    public static long merge(FileSystem fs, Path dir, SAMSequenceDictionary dict, int binSize, PrintWriter out) throws IOException {
+        HashMap<String, long[]> total = new HashMap<>();
+        for (SAMSequenceRecord seq : dict.getSequences())
+            total.put(seq.getSequenceName(), new long[seq.getSequenceLength() / binSize + 1]);
+        long reads = 0;
+        for (FileStatus file : fs.listStatus(dir)) {
+            if(!file.getPath().getName().startsWith(FILE_PREFIX))
+                continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file.getPath())))) {
+                String line = reader.readLine();
+                while(line != null) {
+                    String[] values = line.split("\t");
+                    long[] counts = total.get(values[0]);
+                    int bin = Integer.parseInt(values[1]);
+                    long count = Long.parseLong(values[2]);
+                    if(counts != null && bin < counts.length) {
+                        counts[bin] += count;
+                        reads += count;
+                    }
+                    line = reader.readLine();
+                }
+            }
+        }
+        for (SAMSequenceRecord seq : dict.getSequences()) {
+            long[] counts = total.get(seq.getSequenceName());
+            for(int i = 0; i < counts.length; i++) {
+                int start = i * binSize;
+                int end = Math.min(start + binSize, seq.getSequenceLength() + 1);
+                out.println(seq.getSequenceName() + ":" + start + "-" + end + "\t" + (Math.min(Integer.MAX_VALUE - 1, counts[i]) + 1));
+            }
+        }
+        return reads;
+    }
+}
@@ -664,4 +664,166 @@ public class HalvadeConf {
         return conf.getBoolean(outputGVCF, false);
     }
 
+    private static final String useBamStream = "useBamStream";
+    public static void setUseBamStream(Configuration conf, boolean val) {
+        conf.setBoolean(useBamStream, val);
+    }
+    
+    public static boolean getUseBamStream(Configuration conf) {
+        return conf.getBoolean(useBamStream, false);
+    }
+
+    private static final String compactShuffle = "compactShuffle";
+    public static void setCompactShuffle(Configuration conf, boolean val) {
+        conf.setBoolean(compactShuffle, val);
+    }
+    
+    public static boolean getCompactShuffle(Configuration conf) {
+        return conf.getBoolean(compactShuffle, false);
+    }
+
+    private static final String binQualities = "binQualities";
+    public static void setBinQualities(Configuration conf, boolean val) {
+        conf.setBoolean(binQualities, val);
+    }
+    
+    public static boolean getBinQualities(Configuration conf) {
+        return conf.getBoolean(binQualities, false);
+    }
+
+    private static final String fastPreprocess = "fastPreprocess";
+    public static void setFastPreprocess(Configuration conf, boolean val) {
+        conf.setBoolean(fastPreprocess, val);
+    }
+    
+    public static boolean getFastPreprocess(Configuration conf) {
+        return conf.getBoolean(fastPreprocess, false);
+    }
+
+    private static final String inlineMarkDuplicates = "inlineMarkDuplicates";
+    public static void setInlineMarkDuplicates(Configuration conf, boolean val) {
+        conf.setBoolean(inlineMarkDuplicates, val);
+    }
+    
+    public static boolean getInlineMarkDuplicates(Configuration conf) {
+        return conf.getBoolean(inlineMarkDuplicates, false);
+    }
+
+    private static final String bwaSharedMemory = "bwaSharedMemory";
+    public static void setBwaSharedMemory(Configuration conf, boolean val) {
+        conf.setBoolean(bwaSharedMemory, val);
+    }
+    
+    public static boolean getBwaSharedMemory(Configuration conf) {
+        return conf.getBoolean(bwaSharedMemory, false);
+    }
+
+    private static final String fastqBlocks = "fastqBlocks";
+    public static void setFastqBlocks(Configuration conf, boolean val) {
+        conf.setBoolean(fastqBlocks, val);
+    }
+    
+    public static boolean getFastqBlocks(Configuration conf) {
+        return conf.getBoolean(fastqBlocks, false);
+    }
+
+    private static final String refCacheSize = "refCacheSize";
+    public static void setRefCacheSize(Configuration conf, int val) {
+        conf.setInt(refCacheSize, val);
+    }
+    
+    public static int getRefCacheSize(Configuration conf) {
+        return conf.getInt(refCacheSize, 0);
+    }
+
+    private static final String coverageSample = "coverageSample";
+    public static void setCoverageSample(Configuration conf, double val) {
+        conf.setFloat(coverageSample, (float)val);
+    }
+    public static double getCoverageSample(Configuration conf) {
+        return conf.getFloat(coverageSample, 0.0f);
+    }
+
+    private static final String splitHotRegions = "splitHotRegions";
+    public static void setSplitHotRegions(Configuration conf, boolean val) {
+        conf.setBoolean(splitHotRegions, val);
+    }
+    public static boolean getSplitHotRegions(Configuration conf) {
+        return conf.getBoolean(splitHotRegions, false);
+    }
+
+    private static final String partitionPlan = "partitionPlan";
+    public static void setPartitionPlan(Configuration conf, String val) {
+        conf.set(partitionPlan, val);
+    }
+    public static String getPartitionPlan(Configuration conf) {
+        return conf.get(partitionPlan);
+    }
+    public static void clearPartitionPlan(Configuration conf) {
+        conf.unset(partitionPlan);
+    }
+
+    private static final String preciseRouting = "preciseRouting";
+    public static void setPreciseRouting(Configuration conf, boolean val) {
+        conf.setBoolean(preciseRouting, val);
+    }
+    public static boolean getPreciseRouting(Configuration conf) {
+        return conf.getBoolean(preciseRouting, false);
+    }
+
+    private static final String keptTags = "keptTags";
+    private static final String dropSecondary = "dropSecondary";
+    public static void setKeptTags(Configuration conf, String val) {
+        conf.set(keptTags, val);
+    }
+    public static String[] getKeptTags(Configuration conf) {
+        String val = conf.get(keptTags);
+        return val == null ? null : val.split(",");
+    }
+    public static void setDropSecondary(Configuration conf, boolean val) {
+        conf.setBoolean(dropSecondary, val);
+    }
+    public static boolean getDropSecondary(Configuration conf) {
+        return conf.getBoolean(dropSecondary, false);
+    }
+
+    private static final String tmpBamLevel = "tmpBamLevel";
+    public static void setTmpBamLevel(Configuration conf, int val) {
+        conf.setInt(tmpBamLevel, val);
+    }
+    public static int getTmpBamLevel(Configuration conf) {
+        return conf.getInt(tmpBamLevel, -1);
+    }
+
+    private static final String knownSitesIndex = "knownSitesIndex";
+    public static void setKnownSitesIndex(Configuration conf, String val) {
+        conf.set(knownSitesIndex, val);
+    }
+    public static String getKnownSitesIndex(Configuration conf) {
+        return conf.get(knownSitesIndex);
+    }
+
+    private static final String gatkServer = "gatkServer";
+    public static void setGATKServer(Configuration conf, boolean val) {
+        conf.setBoolean(gatkServer, val);
+    }
+    public static boolean getGATKServer(Configuration conf) {
+        return conf.getBoolean(gatkServer, false);
+    }
+
+    private static final String parallelKeys = "parallelKeys";
+    public static void setParallelKeys(Configuration conf, int val) {
+        conf.setInt(parallelKeys, val);
+    }
+    public static int getParallelKeys(Configuration conf) {
+        return conf.getInt(parallelKeys, 1);
+    }
+
+    private static final String streamBQSR = "streamBQSR";
+    public static void setStreamBQSR(Configuration conf, boolean val) {
+        conf.setBoolean(streamBQSR, val);
+    }
+    public static boolean getStreamBQSR(Configuration conf) {
+        return conf.getBoolean(streamBQSR, false);
+    }
 }
@@ -14,6 +14,7 @@ public class HalvadeFileConstants {
     public static final String FASTA_SUFFIX = ".fasta";
     public static final String FA_SUFFIX = ".fa";
     public static final String DICT_SUFFIX = ".dict";
+    public static final String IDX_SUFFIX = ".idx";
     public static final String DFS = "org.apache.hadoop.hdfs.DistributedFileSystem";
     public static final String LOCALFS = "org.apache.hadoop.fs.LocalFileSystem";
     
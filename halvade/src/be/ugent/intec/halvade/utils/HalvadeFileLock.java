@@ -12,13 +12,39 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 
 /**
+ * Lock on a file shared by all tasks on a node. Waiting tasks block in
+ * FileChannel.lock() on a worker thread so they get the lock as soon as it is
+ * released, threads in the same JVM wait on a semaphore first because a file
+ * lock can only be held once per JVM.
  *
  * @author ddecap
  */
 public class HalvadeFileLock {    
+    protected static final long LOG_INTERVAL = 60000;
+    protected static final ConcurrentHashMap<String, Semaphore> localLocks = new ConcurrentHashMap<>();
+    protected static final ExecutorService locker = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "halvade-file-lock");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    protected Semaphore localLock;
+    protected boolean hasLocalLock = false;
     protected File lockfile;
     protected FileChannel f;
     protected RandomAccessFile file;
@@ -43,29 +69,90 @@ public class HalvadeFileLock {
     }
     
     public void getLock() throws IOException, InterruptedException {
+        getLock(0);
+    }
+    
+    /*
+     * waits at most timeout ms for the lock, 0 waits until the lock is free
+     */
+    public void getLock(long timeout) throws IOException, InterruptedException {
         lockfile = new File(dir, filename);
-        file = new RandomAccessFile(lockfile, "rw");
-        f = file.getChannel();
-        lock = f.tryLock();  
-        int loop = 60;
-        int i =0;
-        while(lock == null) {
-            if (i % loop == 0)  {
-                Logger.DEBUG("waiting for lock...");
-//                context.setStatus("waiting for lock...");
-            }
-            Thread.sleep(1000);
-            i++;
+        long start = System.currentTimeMillis();
+        getLocalLock(start, timeout);
+        try {
+            file = new RandomAccessFile(lockfile, "rw");
+            f = file.getChannel();
             lock = f.tryLock();
+            if (lock == null) {
+                Future<FileLock> result = locker.submit(new Callable<FileLock>() {
+                    @Override
+                    public FileLock call() throws IOException {
+                        return f.lock();
+                    }
+                });
+                try {
+                    while(lock == null) {
+                        try {
+                            lock = result.get(getWaitTime(start, timeout), TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException ex) {
+                            checkTimeout(start, timeout);
+                            Logger.DEBUG("waiting for lock...");
+                        }
+                    }
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                } finally {
+                    // closing the channel stops the worker and releases a lock it got too late
+                    if (lock == null) {
+                        result.cancel(true);
+                        file.close();
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            removeAndReleaseLock();
+            throw ex;
+        }
+    }
+    
+    protected void getLocalLock(long start, long timeout) throws IOException, InterruptedException {
+        String key = lockfile.getAbsolutePath();
+        localLock = localLocks.get(key);
+        if (localLock == null) {
+            localLocks.putIfAbsent(key, new Semaphore(1, true));
+            localLock = localLocks.get(key);
+        }
+        while(!localLock.tryAcquire(getWaitTime(start, timeout), TimeUnit.MILLISECONDS)) {
+            checkTimeout(start, timeout);
+            Logger.DEBUG("waiting for lock...");
         }
+        hasLocalLock = true;
+    }
+    
+    protected long getWaitTime(long start, long timeout) {
+        if (timeout <= 0)
+            return LOG_INTERVAL;
+        return Math.max(1, Math.min(LOG_INTERVAL, start + timeout - System.currentTimeMillis()));
+    }
+    
+    protected void checkTimeout(long start, long timeout) throws IOException {
+        if (timeout > 0 && System.currentTimeMillis() - start >= timeout)
+            throw new IOException("timeout while waiting for lock " + lockfile);
     }
     
     public void removeAndReleaseLock() throws IOException {
-        lockfile.deleteOnExit();
+        if (lockfile != null)
+          lockfile.deleteOnExit();
         if (lock != null && lock.isValid())
           lock.release();
         if (file != null)
           file.close();
+        lock = null;
+        file = null;
+        if (hasLocalLock) {
+            hasLocalLock = false;
+            localLock.release();
+        }
     }
     
 //    // TODO remove locks also and use the other files to check if the file is present. perhaps a hidden crc file?? 
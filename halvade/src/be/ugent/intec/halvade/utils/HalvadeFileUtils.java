@@ -18,13 +18,24 @@
 package be.ugent.intec.halvade.utils;
 
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.ChecksumException;
@@ -66,29 +77,94 @@ public class HalvadeFileUtils {
     }
     
     protected static boolean checkCrc(FileSystem fs, Path file, Path crc) throws IOException {
-        byte[] buf = new byte[512*1024*1024];
-        long len = fs.getFileStatus(file).getLen();
-        long pos = 0;
+        return checkCrc(fs, file, new CRC32()) >= 0;
+    }
+    
+    /*
+     * the checksum filesystem checks the data against the .crc file while reading, 
+     * returns the crc32 of the file or -1 if the checksum is incorrect
+     */
+    protected static long checkCrc(FileSystem fs, Path file, CRC32 crc) throws IOException {
+        byte[] buf = CRC_BUFFER.get();
         Boolean gotException = false;
         FSDataInputStream in = fs.open(file); 
         try { 
-            int read = in.read(pos, buf, 0, buf.length);
-            pos += read;
-            while( pos < len ) {
-                read = in.read(pos, buf, 0, buf.length);
-                pos += read;
+            int read = in.read(buf, 0, buf.length);
+            while(read >= 0) {
+                crc.update(buf, 0, read);
+                read = in.read(buf, 0, buf.length);
             }
-//          IOUtils.readFully(in, buf, 0, buf.length);  // cant process more than 2gb files...
         } catch (ChecksumException e) {
             gotException = true; 
+        } finally {
+            in.close();
         }
         Logger.DEBUG("checksum of " + file + " is " + (gotException ? "incorrect, needs to be redownloaded" : "correct"));
-        in.close();
-        return !gotException;
-        // real check is 52m 16s (chr1)
-        // just return true here is  (crh1)
+        return gotException ? -1 : crc.getValue();
     }
-
+    
+    protected static final ThreadLocal<byte[]> CRC_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024*1024];
+        }
+    };
+    protected static final String VERIFIED_SUFFIX = ".halvade_ok";
+    
+    protected static File getVerifiedMarker(File f) {
+        return new File(f.getParentFile(), "." + f.getName() + VERIFIED_SUFFIX);
+    }
+    
+    /*
+     * a verified marker with the size, modification time and crc32 of the file 
+     * is kept next to the file so the file is only read again if it changed
+     */
+    protected static boolean isVerified(File f) {
+        File marker = getVerifiedMarker(f);
+        if(!marker.exists()) 
+            return false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(marker))) {
+            String[] values = reader.readLine().split("\t");
+            return values.length == 3 && Long.parseLong(values[0]) == f.length() 
+                    && Long.parseLong(values[1]) == f.lastModified();
+        } catch (IOException | NullPointerException | NumberFormatException ex) {
+            return false;
+        }
+    }
+    
+    protected static void writeVerifiedMarker(File f, long crc) {
+        File marker = getVerifiedMarker(f);
+        File tmp = new File(marker.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(tmp)) {
+            writer.println(f.length() + "\t" + f.lastModified() + "\t" + Long.toHexString(crc));
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            return;
+        }
+        if(!tmp.renameTo(marker)) 
+            tmp.delete();
+    }
+    
+    /*
+     * returns true if the local file is present and correct
+     */
+    public static boolean verifyLocalFile(FileSystem lfs, String file) throws IOException {
+        File f = new File(file);
+        if(!f.exists()) 
+            return false;
+        if(isVerified(f)) {
+            Logger.DEBUG("checksum of " + file + " was verified before");
+            return true;
+        }
+        long crc = checkCrc(lfs, new Path(file), new CRC32());
+        if(crc < 0) {
+            getVerifiedMarker(f).delete();
+            return false;
+        }
+        writeVerifiedMarker(f, crc);
+        return true;
+    }
+    
     public static int downloadFileWithLock(FileSystem fs, HalvadeFileLock lock, String from, String to, Configuration conf) throws IOException, InterruptedException, URISyntaxException {
         Logger.DEBUG("downloading from " + from + " to " + to);
         try {
@@ -101,7 +177,7 @@ public class HalvadeFileUtils {
             } else {
                 // check if crc file exists?
                 FileSystem lfs = FileSystem.get(new URI("file:///"), conf);
-                if(!checkCrc(lfs, to)) {
+                if(!verifyLocalFile(lfs, to)) {
                     f.delete();
                     Logger.DEBUG("redownloading...");
                     fs.copyToLocalFile(fromPath, toPath);
@@ -118,6 +194,88 @@ public class HalvadeFileUtils {
         }
     }
     
+    /*
+     * every file is downloaded under its own lock, so files are downloaded in parallel 
+     * and other tasks on the node only wait for the files they need
+     */
+    public static int downloadFilesWithLock(final FileSystem fs, final String[] from, final String[] to, Configuration conf) throws IOException, InterruptedException, URISyntaxException {
+        final FileSystem lfs = FileSystem.get(new URI("file:///"), conf);
+        int threads = Math.max(1, Math.min(from.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < from.length; i++) {
+                final int file = i;
+                results.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException, InterruptedException {
+                        return downloadFileWithOwnLock(fs, lfs, from[file], to[file]);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) 
+                result.get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        updateIndexTimes(lfs, from, to);
+        return 0;
+    }
+    
+    /*
+     * an index that is older than its file is rebuilt by GATK, the files are 
+     * downloaded in parallel so the index can be finished first
+     */
+    protected static void updateIndexTimes(FileSystem lfs, String[] from, String[] to) throws IOException {
+        for (int i = 0; i < from.length; i++) {
+            if(!from[i].endsWith(HalvadeFileConstants.IDX_SUFFIX))
+                continue;
+            String data = from[i].substring(0, from[i].length() - HalvadeFileConstants.IDX_SUFFIX.length());
+            for (int j = 0; j < from.length; j++) {
+                File index = new File(to[i]);
+                File file = new File(to[j]);
+                if(from[j].equals(data) && index.lastModified() < file.lastModified()) {
+                    Logger.DEBUG("updating the modification time of " + to[i]);
+                    if(!index.setLastModified(file.lastModified()))
+                        throw new IOException("could not update the modification time of " + to[i]);
+                    verifyLocalFile(lfs, to[i]);
+                }
+            }
+        }
+    }
+    
+    /*
+     * the file is downloaded to a temporary file and renamed when complete, 
+     * returns true if the file was downloaded
+     */
+    protected static boolean downloadFileWithOwnLock(FileSystem fs, FileSystem lfs, String from, String to) throws IOException, InterruptedException {
+        File f = new File(to);
+        f.getParentFile().mkdirs();
+        HalvadeFileLock lock = new HalvadeFileLock(f.getParent(), "." + f.getName() + ".lock");
+        try {
+            lock.getLock();
+            if(verifyLocalFile(lfs, to)) 
+                return false;
+            Logger.DEBUG("downloading from " + from + " to " + to);
+            if(f.exists()) {
+                lfs.delete(new Path(to), false);
+                Logger.DEBUG("redownloading...");
+            }
+            Path tmp = new Path(to + ".tmp");
+            lfs.delete(tmp, false);
+            fs.copyToLocalFile(new Path(from), tmp);
+            if(!lfs.rename(tmp, new Path(to)))
+                throw new IOException("could not rename " + tmp + " to " + to);
+            if(!verifyLocalFile(lfs, to))
+                throw new IOException("checksum of downloaded file " + to + " is incorrect");
+            return true;
+        } finally {
+            lock.removeAndReleaseLock();
+        }
+    }
+    
     public static int downloadFileFromHDFS(FileSystem fs, String from, String to, Configuration conf) throws IOException, URISyntaxException {
         Logger.DEBUG("downloading from " + from + " to " + to);
         Path toPath = new Path(to);
@@ -222,12 +380,13 @@ public class HalvadeFileUtils {
         else 
             throw new InterruptedException("Illegal filename for gff file: " + gff);
         Logger.DEBUG("suffix: " + gffSuffix);
-        HalvadeFileLock lock = new HalvadeFileLock(refDir, HalvadeFileConstants.GFF_LOCK);
         String filebase = gff.substring(gff.lastIndexOf("/")+1).replace(gffSuffix, "");
         
         
         FileSystem fs = FileSystem.get(new URI(gff), conf);
-        downloadFileWithLock(fs, lock, gff, refDir + filebase + gffSuffix, context.getConfiguration()); 
+        if(HalvadeRefCache.isEnabled(conf)) 
+            return new HalvadeRefCache(conf).getFiles(fs, new String[]{gff}) + filebase + gffSuffix;
+        downloadFilesWithLock(fs, new String[]{gff}, new String[]{refDir + filebase + gffSuffix}, context.getConfiguration()); 
         return refDir + filebase + gffSuffix;
     }
 
@@ -280,21 +439,22 @@ public class HalvadeFileUtils {
         String HDFSRef = ref;
         String refDir = HalvadeConf.getScratchTempDir(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/";
-        HalvadeFileLock lock = new HalvadeFileLock(refDir, HalvadeFileConstants.REF_LOCK);
         FileSystem fs = FileSystem.get(new URI(HDFSRef), conf);
         String suffix = HDFSRef.endsWith(HalvadeFileConstants.FASTA_SUFFIX) ? HalvadeFileConstants.FASTA_SUFFIX : HalvadeFileConstants.FA_SUFFIX;
         String filebase = HDFSRef.substring(HDFSRef.lastIndexOf("/")+1).replace(suffix, "");
         try {
-            for (String filesuffix : refFiles) { 
-                String newsuffix = filesuffix.replace(HalvadeFileConstants.FASTA_SUFFIX, suffix);
-                String newfile = HDFSRef.replace(suffix, newsuffix);
-                downloadFileWithLock(fs, lock, newfile, refDir + filebase + newsuffix, context.getConfiguration());          
+            String[] from = new String[refFiles.length];
+            String[] to = new String[refFiles.length];
+            for (int i = 0; i < refFiles.length; i++) { 
+                String newsuffix = refFiles[i].replace(HalvadeFileConstants.FASTA_SUFFIX, suffix);
+                from[i] = HDFSRef.replace(suffix, newsuffix);
+                to[i] = refDir + filebase + newsuffix;
             }
-            
+            if(HalvadeRefCache.isEnabled(conf)) 
+                return new HalvadeRefCache(conf).getFiles(fs, from) + filebase + suffix;
+            downloadFilesWithLock(fs, from, to, context.getConfiguration());
         } catch (InterruptedException ex) {
             Logger.EXCEPTION(ex);
-        } finally {
-            lock.removeAndReleaseLock();
         }
         Logger.DEBUG("local fasta reference: " + refDir + filebase + suffix);
         return refDir + filebase + suffix; 
@@ -309,21 +469,23 @@ public class HalvadeFileUtils {
         String HDFSRef = ref;
         String refDir = HalvadeConf.getScratchTempDir(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/";
-        HalvadeFileLock lock = new HalvadeFileLock(refDir, HalvadeFileConstants.REF_LOCK);
         FileSystem fs = FileSystem.get(new URI(HDFSRef), conf);
         String suffix = HDFSRef.endsWith(HalvadeFileConstants.FASTA_SUFFIX) ? HalvadeFileConstants.FASTA_SUFFIX : HalvadeFileConstants.FA_SUFFIX;
         String filebase = HDFSRef.substring(HDFSRef.lastIndexOf("/")+1).replace(suffix, "");
         try {
-            for (String filesuffix : HalvadeFileConstants.GATK_REF_FILES) {
-                String newsuffix = filesuffix.replace(HalvadeFileConstants.FASTA_SUFFIX, suffix);
-                String newfile = HDFSRef.replace(suffix, newsuffix);
-                downloadFileWithLock(fs, lock, newfile, refDir + filebase + newsuffix, context.getConfiguration());       
+            String[] refFiles = HalvadeFileConstants.GATK_REF_FILES;
+            String[] from = new String[refFiles.length];
+            String[] to = new String[refFiles.length];
+            for (int i = 0; i < refFiles.length; i++) {
+                String newsuffix = refFiles[i].replace(HalvadeFileConstants.FASTA_SUFFIX, suffix);
+                from[i] = HDFSRef.replace(suffix, newsuffix);
+                to[i] = refDir + filebase + newsuffix;
             }
-            
+            if(HalvadeRefCache.isEnabled(conf)) 
+                return new HalvadeRefCache(conf).getFiles(fs, from) + filebase + suffix;
+            downloadFilesWithLock(fs, from, to, context.getConfiguration());
         } catch (InterruptedException ex) {
             Logger.EXCEPTION(ex);
-        } finally {
-            lock.removeAndReleaseLock();
         }
         Logger.DEBUG("local fasta reference: " + refDir + filebase + suffix);
         return refDir + filebase + suffix;
@@ -339,26 +501,29 @@ public class HalvadeFileUtils {
             return (usePass2Genome? tmpDir + pass2uid : ref);
         }
         String HDFSRef = ref;
-        HalvadeFileLock lock = new HalvadeFileLock(tmpDir, HalvadeFileConstants.REF_LOCK);
         FileSystem fs = FileSystem.get(new URI(HDFSRef), conf);
         String filebase = new Path(HDFSRef).getName() + "/";
         
         // download all files in folder and make sure its 
         try {
+            ArrayList<String> from = new ArrayList<>();
+            ArrayList<String> to = new ArrayList<>();
             for (String file : HalvadeFileConstants.STAR_REF_FILES) {
-                String newfile = HDFSRef + file;
-                downloadFileWithLock(fs, lock, newfile, tmpDir + filebase + file, context.getConfiguration());                
+                from.add(HDFSRef + file);
+                to.add(tmpDir + filebase + file);
             }
             for (String file : HalvadeFileConstants.STAR_REF_OPTIONAL_FILES) {
                 String newfile = HDFSRef + file;
-                if(fs.exists(new Path(newfile))) 
-                    downloadFileWithLock(fs, lock, newfile, tmpDir + filebase + file, context.getConfiguration());
+                if(fs.exists(new Path(newfile))) {
+                    from.add(newfile);
+                    to.add(tmpDir + filebase + file);
+                }
             }
-            
+            if(HalvadeRefCache.isEnabled(conf)) 
+                return new HalvadeRefCache(conf).getFiles(fs, from.toArray(new String[from.size()]));
+            downloadFilesWithLock(fs, from.toArray(new String[from.size()]), to.toArray(new String[to.size()]), context.getConfiguration());
         } catch (InterruptedException ex) {
             Logger.EXCEPTION(ex);
-        } finally {
-            lock.removeAndReleaseLock();
         }
         Logger.DEBUG("local star reference: " + tmpDir + filebase);
         return tmpDir + filebase;
@@ -374,24 +539,27 @@ public class HalvadeFileUtils {
         String localSites[] = new String[sites.length];
         String refDir = HalvadeConf.getScratchTempDir(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/"; 
-        HalvadeFileLock lock = new HalvadeFileLock(refDir, HalvadeFileConstants.REF_LOCK);
         FileSystem fs = FileSystem.get(new URI(sites[0]), conf);
         
         try {
             for (int i= 0; i < HDFSsites.length; i++) {
                 String hdfssite = HDFSsites[i];
                 String name = hdfssite.substring(hdfssite.lastIndexOf('/') + 1);
-                downloadFileWithLock(fs, lock, hdfssite, refDir + name, context.getConfiguration());
+                if(HalvadeRefCache.isEnabled(conf)) {
+                    String[] files = fs.exists(new Path(hdfssite + ".idx")) ? new String[]{hdfssite, hdfssite + ".idx"} : new String[]{hdfssite};
+                    localSites[i] = new HalvadeRefCache(conf).getFiles(fs, files) + name;
+                    continue;
+                }
                 localSites[i] = refDir + name;
                 // attempt to download .idx file
                 if(fs.exists(new Path(hdfssite + ".idx")))
-                    downloadFileWithLock(fs, lock, hdfssite + ".idx", refDir + name + ".idx", context.getConfiguration());
+                    downloadFilesWithLock(fs, new String[]{hdfssite, hdfssite + ".idx"}, new String[]{refDir + name, refDir + name + ".idx"}, context.getConfiguration());
+                else
+                    downloadFilesWithLock(fs, new String[]{hdfssite}, new String[]{refDir + name}, context.getConfiguration());
             }
             
         } catch (InterruptedException ex) {
             Logger.EXCEPTION(ex);
-        } finally {
-            lock.removeAndReleaseLock();
         }
         Logger.DEBUG("local sires:");
         for (String site: localSites) {
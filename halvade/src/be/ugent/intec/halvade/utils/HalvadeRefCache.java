@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Node local cache for reference files. Every file is stored once in objects/
+ * with the hash of its content on HDFS as name. The files of one HDFS directory
+ * are linked with their original name in sets/[hash of the directory]/ so the
+ * tools find all files of a reference together. The manifest keeps the size
+ * and last use of every object. A task holds a shared lock on the lease file of
+ * every object it uses until it ends, objects without a lease are removed,
+ * least recently used first, when the cache grows over its size.
+ *
+ * @author ddecap
+ */
+public class HalvadeRefCache {
+    protected static final String CACHE_DIR = "halvade_ref_cache/";
+    protected static final String OBJECTS_DIR = "objects/";
+    protected static final String SETS_DIR = "sets/";
+    protected static final String MANIFEST = "manifest";
+    protected static final String MANIFEST_LOCK = "manifest.lock";
+    protected static final String LEASE_SUFFIX = ".lease";
+    protected static final int DOWNLOAD_THREADS = 4;
+    protected static final HashMap<String, FileLock> leases = new HashMap<>();
+
+    protected Configuration conf;
+    protected String cacheDir;
+    protected long maxSize;
+    protected FileSystem lfs;
+    protected HashMap<String, Entry> entries;
+
+    protected static class Entry {
+        protected String hash;
+        protected long size;
+        protected long lastUsed;
+        protected String source;
+        protected long sourceLength;
+        protected long sourceModificationTime;
+
+        protected Entry(String hash, String source, long sourceLength, long sourceModificationTime) {
+            this.hash = hash;
+            this.source = source;
+            this.sourceLength = sourceLength;
+            this.sourceModificationTime = sourceModificationTime;
+        }
+
+        protected Entry(String line) {
+            String[] values = line.split("\t");
+            hash = values[0];
+            size = Long.parseLong(values[1]);
+            lastUsed = Long.parseLong(values[2]);
+            source = values[3];
+            sourceLength = Long.parseLong(values[4]);
+            sourceModificationTime = Long.parseLong(values[5]);
+        }
+
+        @Override
+        public String toString() {
+            return hash + "\t" + size + "\t" + lastUsed + "\t" + source + "\t" + sourceLength + "\t" + sourceModificationTime;
+        }
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return HalvadeConf.getRefCacheSize(conf) > 0;
+    }
+
+    public HalvadeRefCache(Configuration conf) throws IOException, URISyntaxException {
+        this.conf = conf;
+        cacheDir = HalvadeConf.getScratchTempDir(conf) + CACHE_DIR;
+        maxSize = HalvadeConf.getRefCacheSize(conf) * 1024L * 1024L * 1024L;
+        lfs = FileSystem.get(new URI("file:///"), conf);
+        new File(cacheDir + OBJECTS_DIR).mkdirs();
+        new File(cacheDir + SETS_DIR).mkdirs();
+    }
+
+    /*
+     * makes the files available in the set of their HDFS directory
+     * and returns the local directory of that set. The manifest lock is only
+     * held to read and update the manifest and to take the leases, every object 
+     * has its own lock while it is verified or downloaded.
+     */
+    public String getFiles(final FileSystem fs, String[] from) throws IOException, InterruptedException {
+        String setDir = cacheDir + SETS_DIR + hash(new Path(from[0]).getParent().toString()) + "/";
+        new File(setDir).mkdirs();
+        final List<Entry> used = new ArrayList<>();
+        HalvadeFileLock lock = new HalvadeFileLock(cacheDir, MANIFEST_LOCK);
+        try {
+            lock.getLock();
+            readManifest();
+            for (String file : from) {
+                Entry e = getEntry(fs, new Path(file));
+                used.add(e);
+                lease(e);
+            }
+        } finally {
+            lock.removeAndReleaseLock();
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(DOWNLOAD_THREADS, used.size()));
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (final Entry e : used) {
+                results.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException, InterruptedException {
+                        return getObject(fs, e);
+                    }
+                }));
+            }
+            for (int i = 0; i < used.size(); i++)
+                used.get(i).size = results.get(i).get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        
+        lock = new HalvadeFileLock(cacheDir, MANIFEST_LOCK);
+        try {
+            lock.getLock();
+            readManifest();
+            long now = System.currentTimeMillis();
+            String[] objects = new String[from.length];
+            for (int i = 0; i < from.length; i++) {
+                Entry e = used.get(i);
+                // another task can have evicted the object in the meantime
+                if(!new File(getObject(e)).exists())
+                    e.size = getObject(fs, e);
+                objects[i] = getObject(e);
+            }
+            // before the set is linked, so no task sees an index older than its file
+            HalvadeFileUtils.updateIndexTimes(lfs, from, objects);
+            for (int i = 0; i < from.length; i++) {
+                Entry e = used.get(i);
+                e.lastUsed = now;
+                entries.put(e.hash, e);
+                link(objects[i], setDir + new Path(from[i]).getName());
+            }
+            evict();
+            writeManifest();
+        } finally {
+            lock.removeAndReleaseLock();
+        }
+        Logger.DEBUG("reference files available in " + setDir);
+        return setDir;
+    }
+
+    protected String getObject(Entry e) {
+        return cacheDir + OBJECTS_DIR + e.hash;
+    }
+
+    /*
+     * the content hash is only computed if the HDFS file changed since it was cached
+     */
+    protected Entry getEntry(FileSystem fs, Path file) throws IOException {
+        FileStatus status = fs.getFileStatus(file);
+        String source = fs.makeQualified(file).toString();
+        for (Entry e : entries.values()) {
+            if(e.source.equals(source) && e.sourceLength == status.getLen()
+                    && e.sourceModificationTime == status.getModificationTime())
+                return e;
+        }
+        FileChecksum checksum = fs.getFileChecksum(file);
+        String hash;
+        if(checksum != null)
+            hash = hash(checksum.getAlgorithmName() + ":" + toHex(checksum.getBytes()));
+        else
+            hash = hash(source + ":" + status.getLen() + ":" + status.getModificationTime());
+        Entry e = entries.get(hash);
+        if(e == null)
+            e = new Entry(hash, source, status.getLen(), status.getModificationTime());
+        else {
+            e.source = source;
+            e.sourceLength = status.getLen();
+            e.sourceModificationTime = status.getModificationTime();
+        }
+        return e;
+    }
+
+    /*
+     * verifies the object or downloads it to a temporary name and renames it when complete,
+     * returns the size of the object
+     */
+    protected long getObject(FileSystem fs, Entry e) throws IOException, InterruptedException {
+        HalvadeFileLock lock = new HalvadeFileLock(cacheDir + OBJECTS_DIR, e.hash + ".lock");
+        try {
+            lock.getLock();
+            Path object = new Path(getObject(e));
+            if(!HalvadeFileUtils.verifyLocalFile(lfs, object.toString())) {
+                Path tmp = new Path(getObject(e) + ".tmp");
+                lfs.delete(object, false);
+                lfs.delete(tmp, false);
+                Logger.DEBUG("downloading from " + e.source + " to " + object);
+                fs.copyToLocalFile(new Path(e.source), tmp);
+                if(!lfs.rename(tmp, object))
+                    throw new IOException("could not rename " + tmp + " to " + object);
+                if(!HalvadeFileUtils.verifyLocalFile(lfs, object.toString()))
+                    throw new IOException("checksum of downloaded file " + object + " is incorrect");
+            }
+            return new File(object.toString()).length();
+        } finally {
+            lock.removeAndReleaseLock();
+        }
+    }
+
+    protected void link(String object, String link) throws IOException {
+        java.nio.file.Path linkPath = Paths.get(link);
+        java.nio.file.Path target = Paths.get(object);
+        if(Files.isSymbolicLink(linkPath) && Files.readSymbolicLink(linkPath).equals(target))
+            return;
+        Files.deleteIfExists(linkPath);
+        Files.createSymbolicLink(linkPath, target);
+    }
+
+    /*
+     * takes a shared lock on the lease file of the object, the lease is kept 
+     * until the task ends so the object isn't evicted while a tool uses it
+     */
+    protected void lease(Entry e) throws IOException {
+        String object = getObject(e);
+        synchronized (leases) {
+            if(leases.containsKey(object))
+                return;
+            FileChannel channel = new RandomAccessFile(object + LEASE_SUFFIX, "rw").getChannel();
+            try {
+                leases.put(object, channel.lock(0, Long.MAX_VALUE, true));
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+    }
+
+    /*
+     * removes the object if no task has a lease on it, returns false if it is in use
+     */
+    protected boolean remove(Entry e) throws IOException, InterruptedException {
+        String object = getObject(e);
+        synchronized (leases) {
+            if(leases.containsKey(object))
+                return false;
+        }
+        File leaseFile = new File(object + LEASE_SUFFIX);
+        try (FileChannel channel = new RandomAccessFile(leaseFile, "rw").getChannel()) {
+            if(channel.tryLock() == null)
+                return false;
+            Logger.DEBUG("removing " + e.source + " from the reference cache");
+            HalvadeFileLock lock = new HalvadeFileLock(cacheDir + OBJECTS_DIR, e.hash + ".lock");
+            try {
+                lock.getLock();
+                lfs.delete(new Path(object), false);
+                HalvadeFileUtils.getVerifiedMarker(new File(object)).delete();
+            } finally {
+                lock.removeAndReleaseLock();
+            }
+            leaseFile.delete();
+        }
+        return true;
+    }
+
+    /*
+     * removes the links in the sets to objects that are no longer in the cache
+     */
+    protected void unlink(HashSet<java.nio.file.Path> removed) throws IOException {
+        File[] sets = new File(cacheDir + SETS_DIR).listFiles();
+        if(sets == null)
+            return;
+        for (File set : sets) {
+            if(!set.isDirectory())
+                continue;
+            try (DirectoryStream<java.nio.file.Path> links = Files.newDirectoryStream(set.toPath())) {
+                for (java.nio.file.Path link : links) {
+                    if(Files.isSymbolicLink(link) && removed.contains(Files.readSymbolicLink(link)))
+                        Files.deleteIfExists(link);
+                }
+            }
+        }
+    }
+
+    /*
+     * removes the least recently used objects that no task has a lease on
+     */
+    protected void evict() throws IOException, InterruptedException {
+        long size = 0;
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            size += e.size;
+            candidates.add(e);
+        }
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.lastUsed, o2.lastUsed);
+            }
+        });
+        HashSet<java.nio.file.Path> removed = new HashSet<>();
+        for (Entry e : candidates) {
+            if(size <= maxSize)
+                break;
+            if(!remove(e))
+                continue;
+            removed.add(Paths.get(getObject(e)));
+            entries.remove(e.hash);
+            size -= e.size;
+        }
+        if(!removed.isEmpty())
+            unlink(removed);
+        if(size > maxSize)
+            Logger.DEBUG("reference cache uses " + size / (1024*1024) + " MB, more than the maximum size");
+    }
+
+    protected void readManifest() throws IOException {
+        entries = new HashMap<>();
+        File manifest = new File(cacheDir + MANIFEST);
+        if(!manifest.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line = reader.readLine();
+            while(line != null) {
+                if(!line.isEmpty()) {
+                    Entry e = new Entry(line);
+                    entries.put(e.hash, e);
+                }
+                line = reader.readLine();
+            }
+        }
+    }
+
+    protected void writeManifest() throws IOException {
+        File manifest = new File(cacheDir + MANIFEST);
+        File tmp = new File(cacheDir + MANIFEST + ".tmp");
+        try (PrintWriter writer = new PrintWriter(tmp)) {
+            for (Entry e : entries.values())
+                writer.println(e.toString());
+        }
+        if(!tmp.renameTo(manifest))
+            throw new IOException("could not write the reference cache manifest");
+    }
+
+    protected static String hash(String value) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return toHex(md.digest(value.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    protected static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Known sites VCF partitioned by the Halvade regions. The records of every
+ * known sites file that are within SITES_MARGIN bp of a region are written
+ * once to a VCF file on HDFS, the index gives the byte ranges of every key
+ * in that file. A reduce task copies the header and the ranges of its key
+ * to a small local VCF instead of filtering the complete file.
+ * The index is built once when the job is submitted and reused as long as
+ * the known sites file and the regions do not change.
+ *
+ * @author ddecap
+ */
+public class KnownSitesIndex {
+    // same overlap as the filtered dbSNP file
+    public static final int SITES_MARGIN = 301;
+    protected static final int VERSION = 1;
+    protected static final String DATA_SUFFIX = ".vcf";
+    protected static final String INDEX_SUFFIX = ".hidx";
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static String getName(String dir, int site) {
+        return dir + "sites" + site;
+    }
+
+    /*
+     * the index is only valid for the same known sites file and the same regions
+     */
+    protected static String getFingerprint(FileSystem fs, String sites, FileSystem regionsFs, String regions) throws IOException {
+        FileStatus status = fs.getFileStatus(new Path(sites));
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = regionsFs.open(new Path(regions))) {
+            int read = in.read(buffer);
+            while(read >= 0) {
+                md.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        }
+        return sites + ":" + status.getLen() + ":" + status.getModificationTime() + ":" + HalvadeRefCache.toHex(md.digest());
+    }
+
+    /**
+     * builds the index of this known sites file in dir if there is no valid index yet
+     */
+    public static void build(Configuration conf, String sites, int site, String dir, String regions) throws IOException, URISyntaxException {
+        FileSystem fs = FileSystem.get(new URI(sites), conf);
+        FileSystem outFs = FileSystem.get(new URI(dir), conf);
+        String fingerprint = getFingerprint(fs, sites, FileSystem.get(new URI(regions), conf), regions);
+        Path data = new Path(getName(dir, site) + DATA_SUFFIX);
+        Path index = new Path(getName(dir, site) + INDEX_SUFFIX);
+        if(outFs.exists(index) && outFs.exists(data)) {
+            try (DataInputStream dis = new DataInputStream(outFs.open(index))) {
+                if(dis.readInt() == VERSION && dis.readUTF().equals(fingerprint)) {
+                    Logger.DEBUG("known sites index of " + sites + " already built");
+                    return;
+                }
+            }
+        }
+        Logger.DEBUG("building known sites index of " + sites);
+        long startTime = System.currentTimeMillis();
+        ChromosomeSplitter splitter = new ChromosomeSplitter(regions, conf);
+        int keyCount = splitter.getRegionCount();
+        // open range of every key in the data file, closed ranges are kept per key
+        long[] openStart = new long[keyCount];
+        long[] openEnd = new long[keyCount];
+        Arrays.fill(openStart, -1);
+        ArrayList<ArrayList<long[]>> ranges = new ArrayList<>();
+        for(int i = 0; i < keyCount; i++)
+            ranges.add(new ArrayList<long[]>());
+        int[] keys = new int[64];
+        long offset = 0, headerLength = 0, records = 0, written = 0;
+        InputStream in = fs.open(new Path(sites));
+        if(sites.endsWith(".gz"))
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), BUFFER_SIZE);
+             OutputStream out = outFs.create(data, true)) {
+            String line = reader.readLine();
+            while(line != null) {
+                if(line.startsWith("#")) {
+                    byte[] bytes = (line + "\n").getBytes("UTF-8");
+                    out.write(bytes);
+                    offset += bytes.length;
+                    headerLength = offset;
+                } else if(!line.isEmpty()) {
+                    records++;
+                    int tab1 = line.indexOf('\t');
+                    int tab2 = line.indexOf('\t', tab1 + 1);
+                    int pos = Integer.parseInt(line.substring(tab1 + 1, tab2));
+                    int count = splitter.getRegions(line.substring(0, tab1), pos - SITES_MARGIN, pos + SITES_MARGIN, keys);
+                    if(count > 0) {
+                        byte[] bytes = (line + "\n").getBytes("UTF-8");
+                        out.write(bytes);
+                        for(int i = 0; i < count; i++) {
+                            int key = keys[i];
+                            if(openStart[key] >= 0 && openEnd[key] != offset)
+                                ranges.get(key).add(new long[]{openStart[key], openEnd[key]});
+                            if(openStart[key] < 0 || openEnd[key] != offset)
+                                openStart[key] = offset;
+                            openEnd[key] = offset + bytes.length;
+                        }
+                        offset += bytes.length;
+                        written++;
+                    }
+                }
+                line = reader.readLine();
+            }
+        }
+        try (DataOutputStream dos = new DataOutputStream(outFs.create(index, true))) {
+            dos.writeInt(VERSION);
+            dos.writeUTF(fingerprint);
+            dos.writeLong(headerLength);
+            dos.writeInt(keyCount);
+            for(int key = 0; key < keyCount; key++) {
+                if(openStart[key] >= 0)
+                    ranges.get(key).add(new long[]{openStart[key], openEnd[key]});
+                dos.writeInt(ranges.get(key).size());
+                for(long[] range : ranges.get(key)) {
+                    dos.writeLong(range[0]);
+                    dos.writeLong(range[1]);
+                }
+            }
+        }
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("indexed " + written + " of " + records + " known sites in " + estimatedTime / 1000 + " s");
+    }
+
+    /**
+     * writes the header and the known sites of this key to a local VCF file
+     * @return the name of the local file
+     */
+    public static String getSites(Configuration conf, String dir, int site, int key, String localFile) throws IOException, URISyntaxException {
+        long startTime = System.currentTimeMillis();
+        FileSystem fs = FileSystem.get(new URI(dir), conf);
+        long headerLength;
+        long[][] ranges = new long[0][];
+        try (DataInputStream dis = new DataInputStream(fs.open(new Path(getName(dir, site) + INDEX_SUFFIX)))) {
+            if(dis.readInt() != VERSION)
+                throw new IOException("unknown version of the known sites index " + getName(dir, site));
+            dis.readUTF();
+            headerLength = dis.readLong();
+            int keyCount = dis.readInt();
+            for(int k = 0; k < keyCount && k <= key; k++) {
+                int count = dis.readInt();
+                if(k == key) {
+                    ranges = new long[count][2];
+                    for(int i = 0; i < count; i++) {
+                        ranges[i][0] = dis.readLong();
+                        ranges[i][1] = dis.readLong();
+                    }
+                } else
+                    dis.skipBytes(count * 16);
+            }
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long bytes = headerLength;
+        try (FSDataInputStream in = fs.open(new Path(getName(dir, site) + DATA_SUFFIX));
+             OutputStream out = new FileOutputStream(localFile)) {
+            copy(in, out, 0, headerLength, buffer);
+            for(long[] range : ranges) {
+                copy(in, out, range[0], range[1], buffer);
+                bytes += range[1] - range[0];
+            }
+        }
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("copied " + bytes / 1024 + " KB of known sites to " + localFile + " in " + estimatedTime + " ms");
+        return localFile;
+    }
+
+    protected static void copy(FSDataInputStream in, OutputStream out, long start, long end, byte[] buffer) throws IOException {
+        in.seek(start);
+        long left = end - start;
+        while(left > 0) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+            if(read < 0)
+                throw new IOException("unexpected end of the known sites file");
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+    }
+}
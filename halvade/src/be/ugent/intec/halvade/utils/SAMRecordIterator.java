@@ -25,33 +25,70 @@ public class SAMRecordIterator implements Iterator<SAMRecord> {
     protected int currentStart = -1, currentEnd = -1, currentChr = -1;
     protected String chrString = "";
     protected boolean requireFixQuality = false;
+    protected boolean binQualities = false;
     protected SAMFileHeader header;
     protected static final int INTERVAL_OVERLAP = 51;
+    // records are read and their qualities fixed in batches
+    protected static final int BATCH_SIZE = 256;
+    protected SAMRecord[] batch = new SAMRecord[BATCH_SIZE];
+    protected int batchSize = 0, batchIndex = 0;
 
     public SAMRecordIterator(Iterator<SAMRecordWritable> it, SAMFileHeader header, boolean requireFixQuality) throws QualityException {
-        this.it = it;
-        r = new ChromosomeRange();
-        this.header = header;
-        this.requireFixQuality = requireFixQuality;
-        getFirstRecord();
+        this(it, header, new ChromosomeRange(), requireFixQuality, false);
     }
     
     public SAMRecordIterator(Iterator<SAMRecordWritable> it, SAMFileHeader header, ChromosomeRange r, boolean requireFixQuality) throws QualityException {
+        this(it, header, r, requireFixQuality, false);
+    }
+    
+    /*
+     * with binQualities the qualities of all reads are binned, after their encoding is fixed.
+     * Binning is idempotent, reads that are already binned in the map output don't change
+     */
+    public SAMRecordIterator(Iterator<SAMRecordWritable> it, SAMFileHeader header, ChromosomeRange r, boolean requireFixQuality, boolean binQualities) throws QualityException {
         this.it = it;
         this.r = r;
         this.header = header;
         this.requireFixQuality = requireFixQuality;
+        this.binQualities = binQualities;
         getFirstRecord();
     }
     
+    private void readBatch() {
+        batchSize = 0;
+        batchIndex = 0;
+        while (batchSize < BATCH_SIZE && it.hasNext()) {
+            SAMRecord record = it.next().get();
+            record.setHeader(header);
+            batch[batchSize++] = record;
+        }
+    }
+    
+    private void fixBatch() throws QualityException {
+        if (requireFixQuality || binQualities) 
+            QualityEncoding.transformQualities(batch, batchSize, requireFixQuality, binQualities);
+    }
+    
+    private SAMRecord nextRecord() throws QualityException {
+        if (batchIndex == batchSize) {
+            readBatch();
+            fixBatch();
+        }
+        if (batchIndex == batchSize)
+            return null;
+        SAMRecord record = batch[batchIndex];
+        batch[batchIndex++] = null;
+        return record;
+    }
+    
     private void getFirstRecord() throws QualityException {
         sam = null;
-        if(it.hasNext()) {
-            sam = it.next().get();
-            sam.setHeader(header);
+        readBatch();
+        if(batchSize > 0) {
             if(!requireFixQuality) // is default so need to check (if true means its set manually)
-                requireFixQuality = (QualityEncoding.guessEncoding(sam) == QualityEncoding.QENCODING.ILLUMINA);
-            if (requireFixQuality) sam = QualityEncoding.fixMisencodedQuals(sam);
+                requireFixQuality = (QualityEncoding.guessEncoding(batch[0]) == QualityEncoding.QENCODING.ILLUMINA);
+            fixBatch();
+            sam = nextRecord();
             reads++;
             currentStart = sam.getAlignmentStart();
             currentEnd = sam.getAlignmentEnd();
@@ -68,11 +105,9 @@ public class SAMRecordIterator implements Iterator<SAMRecord> {
     @Override
     public SAMRecord next() {
         SAMRecord tmp = sam;
-        if (it.hasNext()) {
+        if (batchIndex < batchSize || it.hasNext()) {
             try {
-                sam = it.next().get();
-                sam.setHeader(header);
-                if (requireFixQuality) sam = QualityEncoding.fixMisencodedQuals(sam);
+                sam = nextRecord();
                 reads++;
                 if(sam.getReferenceIndex() == currentChr && sam.getAlignmentStart() <= currentEnd + INTERVAL_OVERLAP){
                     if (sam.getAlignmentEnd() > currentEnd) {
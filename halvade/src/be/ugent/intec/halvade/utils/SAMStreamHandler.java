@@ -20,9 +20,11 @@ package be.ugent.intec.halvade.utils;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import be.ugent.intec.halvade.tools.AlignerInstance;
+import be.ugent.intec.halvade.tools.ProcessException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.BufferedLineReader;
 import org.apache.hadoop.io.LongWritable;
@@ -56,6 +58,7 @@ public class SAMStreamHandler extends Thread {
     AlignerInstance instance;
     boolean isPaired = true;
     protected boolean useCompact;
+    protected boolean useBam;
 
     public SAMStreamHandler(AlignerInstance instance, Context context, boolean useCompact) {
         this.is = instance.getSTDOUTStream();
@@ -69,10 +72,15 @@ public class SAMStreamHandler extends Thread {
         samRecordFactory = new DefaultSAMRecordFactory();
         this.context = context;
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
+        useBam = HalvadeConf.getUseBamStream(context.getConfiguration());
     }
     
     @Override
     public void run() {
+        if(useBam) {
+            runBamStream();
+            return;
+        }
         // get header first 
         SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
         headerCodec.setValidationStringency(validationStringency);
@@ -103,6 +111,68 @@ public class SAMStreamHandler extends Thread {
         Logger.DEBUG("SAMstream counts " + count + " records");
     }
     
+    /*
+     * the SAM output of the aligner is piped through samtools view -u 
+     * and the uncompressed BAM records are decoded with the binary codec, 
+     * this avoids the text parsing of every field in each SAM line
+     */
+    private void runBamStream() {
+        int count = 0;
+        String[] command = CommandGenerator.SAMToolsStreamToBam(instance.getBinDir());
+        ProcessBuilderWrapper converter = new ProcessBuilderWrapper(command, instance.getBinDir());
+        try {
+            converter.startProcess(null, System.err);
+            if(!converter.isAlive())
+                throw new ProcessException("samtools view", converter.getExitState());
+            StreamCopier copier = new StreamCopier(is, converter.getSTDINStream());
+            copier.start();
+            SamReader reader = SamReaderFactory.makeDefault()
+                    .validationStringency(validationStringency)
+                    .samRecordFactory(samRecordFactory)
+                    .open(SamInputResource.of(converter.getSTDOUTStream()));
+            mFileHeader = reader.getFileHeader();
+            if(instance.getFileHeader() == null)
+                instance.setFileHeader(mFileHeader);
+            for (SAMRecord samrecord : reader) {
+                if(isPaired) count += instance.writePairedSAMRecordToContext(samrecord, useCompact);
+                else count += instance.writeSAMRecordToContext(samrecord, useCompact);
+            }
+            reader.close();
+            copier.join();
+            int error = converter.waitForCompletion();
+            if(error != 0)
+                throw new ProcessException("samtools view", error);
+        } catch (IOException | InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+        }
+        Logger.DEBUG("SAMstream counts " + count + " records");
+    }
+    
+    private static class StreamCopier extends Thread {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        InputStream in;
+        OutputStream out;
+
+        public StreamCopier(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                out.flush();
+                out.close();
+            } catch (IOException ex) {
+                Logger.EXCEPTION(ex);
+            }
+        }
+    }
+    
     private String advanceLine()
     {
         mCurrentLine = mReader.readLine();